@@ -21,8 +21,6 @@
  */
 package net.openrs.cache;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -36,7 +34,14 @@ import java.nio.ByteBuffer;
 public class Archive {
 
 	/**
-	 * Decodes the specified {@link ByteBuffer} into an {@link Archive}.
+	 * The maximum number of chunks an archive can be split into.
+	 */
+	public static final int MAX_CHUNKS = 255;
+
+	/**
+	 * Decodes the specified {@link ByteBuffer} into an {@link Archive}. If the
+	 * archive consists of a single chunk, the entries are read-only views of
+	 * the specified buffer rather than copies of it.
 	 * 
 	 * @param buffer
 	 *            The buffer.
@@ -71,24 +76,39 @@ public class Archive {
 			}
 		}
 
+		/*
+		 * if there is only one chunk each entry is a contiguous range of the
+		 * data, so simply hand out read-only views of it
+		 */
+		if (chunks == 1) {
+			ByteBuffer view = buffer.asReadOnlyBuffer();
+			int position = 0;
+			for (int id = 0; id < size; id++) {
+				view.limit(position + sizes[id]);
+				view.position(position);
+				archive.entries[id] = view.slice();
+				position += sizes[id];
+			}
+			return archive;
+		}
+
 		/* allocate the buffers for the child entries */
 		for (int id = 0; id < size; id++) {
 			archive.entries[id] = ByteBuffer.allocate(sizes[id]);
 		}
 
-		/* read the data into the buffers */
-		buffer.position(0);
+		/* copy each chunk straight into the file buffers through a sliding view of the data */
+		ByteBuffer view = buffer.duplicate();
+		view.limit(0);
 		for (int chunk = 0; chunk < chunks; chunk++) {
 			for (int id = 0; id < size; id++) {
 				/* get the length of this chunk */
 				int chunkSize = chunkSizes[chunk][id];
 
-				/* copy this chunk into a temporary buffer */
-				byte[] temp = new byte[chunkSize];
-				buffer.get(temp);
-
-				/* copy the temporary buffer into the file buffer */
-				archive.entries[id].put(temp);
+				/* narrow the view to this chunk and copy it into the file buffer */
+				view.position(view.limit());
+				view.limit(view.position() + chunkSize);
+				archive.entries[id].put(view);
 			}
 		}
 
@@ -117,59 +137,86 @@ public class Archive {
 	}
 
 	/**
-	 * Encodes this {@link Archive} into a {@link ByteBuffer}.
-	 * <p />
-	 * Please note that this is a fairly simple implementation that does not
-	 * attempt to use more than one chunk.
+	 * Encodes this {@link Archive} into a {@link ByteBuffer}, storing all of
+	 * the entries in a single chunk.
 	 * 
 	 * @return An encoded {@link ByteBuffer}.
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
-	public ByteBuffer encode() throws IOException { // TODO: an implementation
-													// that can use more than
-													// one chunk
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		DataOutputStream os = new DataOutputStream(bout);
-		try {
-			/* add the data for each entry */
-			for (int id = 0; id < entries.length; id++) {
-				/* copy to temp buffer */
-				byte[] temp = new byte[entries[id].limit()];
-				entries[id].position(0);
-				try {
-					entries[id].get(temp);
-				} finally {
-					entries[id].position(0);
-				}
+	public ByteBuffer encode() throws IOException {
+		return encode(Integer.MAX_VALUE);
+	}
 
-				/* copy to output stream */
-				os.write(temp);
-			}
+	/**
+	 * Encodes this {@link Archive} into a {@link ByteBuffer}, splitting the
+	 * entries into chunks of at most the specified number of bytes so the
+	 * archive can be read back a chunk at a time. As an archive can hold at
+	 * most {@link #MAX_CHUNKS} chunks, the chunk size is raised if necessary.
+	 * 
+	 * @param maxChunkSize
+	 *            The maximum number of bytes of entry data in each chunk.
+	 * @return An encoded {@link ByteBuffer}.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public ByteBuffer encode(int maxChunkSize) throws IOException {
+		if (maxChunkSize <= 0)
+			throw new IllegalArgumentException("Chunk size must be positive");
+
+		/* calculate the total size of the entries */
+		long total = 0;
+		for (int id = 0; id < entries.length; id++) {
+			total += entries[id].limit();
+		}
 
-			/* write the chunk lengths */
+		/* work out how many chunks are needed, always writing at least one */
+		int chunkSize = (int) Math.max(maxChunkSize, (total + MAX_CHUNKS - 1) / MAX_CHUNKS);
+		int chunks = (int) Math.max(1, (total + chunkSize - 1) / chunkSize);
+
+		/* allocate a buffer for the data, the chunk lengths and the chunk count */
+		long length = total + (long) chunks * entries.length * 4 + 1;
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Archive too large");
+		ByteBuffer buf = ByteBuffer.allocate((int) length);
+
+		/*
+		 * each chunk holds the next chunkSize bytes of the entries laid end to
+		 * end, so the data is simply every entry in order
+		 */
+		for (int id = 0; id < entries.length; id++) {
+			ByteBuffer entry = entries[id].duplicate();
+			entry.position(0);
+			buf.put(entry);
+		}
+
+		/* write the delta-encoded length of each entry's part of every chunk */
+		int id = 0;
+		int written = 0;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int remaining = chunkSize;
 			int prev = 0;
-			for (int id = 0; id < entries.length; id++) {
-				/*
-				 * since each file is stored in the only chunk, just write the
-				 * delta-encoded file size
-				 */
-				int chunkSize = entries[id].limit();
-				os.writeInt(chunkSize - prev);
-				prev = chunkSize;
+			for (int member = 0; member < entries.length; member++) {
+				int part = 0;
+				if (member == id && remaining > 0) {
+					/* take as much of the current entry as will fit */
+					part = Math.min(entries[id].limit() - written, remaining);
+					remaining -= part;
+					written += part;
+					if (written == entries[id].limit()) {
+						id++;
+						written = 0;
+					}
+				}
+				buf.putInt(part - prev);
+				prev = part;
 			}
+		}
 
-			/*
-			 * we only used one chunk due to a limitation of the implementation
-			 */
-			bout.write(1);
+		/* write the number of chunks */
+		buf.put((byte) chunks);
 
-			/* wrap the bytes from the stream in a buffer */
-			byte[] bytes = bout.toByteArray();
-			return ByteBuffer.wrap(bytes);
-		} finally {
-			os.close();
-		}
+		return (ByteBuffer) buf.flip();
 	}
 
 	/**
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.openrs.cache.util.XTEAManager;
+
+/**
+ * The {@link AsyncCache} class provides a non-blocking API for reading files
+ * from a {@link Cache}. Files are read from disk on a bounded I/O executor,
+ * and are then decrypted and decompressed on a separate CPU executor, so the
+ * calling thread never blocks on the cache.
+ */
+public final class AsyncCache implements Closeable {
+
+	/**
+	 * The cache files are read from.
+	 */
+	private final Cache cache;
+
+	/**
+	 * The executor that reads files from disk.
+	 */
+	private final Executor io;
+
+	/**
+	 * The executor that decrypts and decompresses files.
+	 */
+	private final Executor cpu;
+
+	/**
+	 * Whether the executors were created by and should be shut down with this
+	 * {@link AsyncCache}.
+	 */
+	private final boolean owned;
+
+	/**
+	 * Creates a new {@link AsyncCache} with its own fixed-size executors.
+	 * 
+	 * @param cache
+	 *            The cache to read files from.
+	 * @param ioThreads
+	 *            The number of threads that read files from disk.
+	 * @param cpuThreads
+	 *            The number of threads that decrypt and decompress files.
+	 */
+	public AsyncCache(Cache cache, int ioThreads, int cpuThreads) {
+		this(cache, Executors.newFixedThreadPool(ioThreads, createThreadFactory("cache-io")),
+				Executors.newFixedThreadPool(cpuThreads, createThreadFactory("cache-cpu")), true);
+	}
+
+	/**
+	 * Creates a new {@link AsyncCache} that uses the specified executors. The
+	 * executors are not shut down when this {@link AsyncCache} is closed.
+	 * 
+	 * @param cache
+	 *            The cache to read files from.
+	 * @param io
+	 *            The executor that reads files from disk.
+	 * @param cpu
+	 *            The executor that decrypts and decompresses files.
+	 */
+	public AsyncCache(Cache cache, Executor io, Executor cpu) {
+		this(cache, io, cpu, false);
+	}
+
+	/**
+	 * Creates a new {@link AsyncCache}.
+	 * 
+	 * @param cache
+	 *            The cache to read files from.
+	 * @param io
+	 *            The executor that reads files from disk.
+	 * @param cpu
+	 *            The executor that decrypts and decompresses files.
+	 * @param owned
+	 *            Whether the executors should be shut down on close.
+	 */
+	private AsyncCache(Cache cache, Executor io, Executor cpu, boolean owned) {
+		this.cache = cache;
+		this.io = io;
+		this.cpu = cpu;
+		this.owned = owned;
+	}
+
+	/**
+	 * Creates a factory for daemon threads, so an idle executor never keeps
+	 * the JVM alive.
+	 * 
+	 * @param name
+	 *            The prefix of the names of the threads.
+	 * @return The thread factory.
+	 */
+	private static ThreadFactory createThreadFactory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	@Override
+	public void close() {
+		if (owned) {
+			((ExecutorService) io).shutdown();
+			((ExecutorService) cpu).shutdown();
+		}
+	}
+
+	/**
+	 * Gets the cache files are read from.
+	 * 
+	 * @return The cache.
+	 */
+	public Cache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Reads a file from the cache.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 * @return A future that completes with the file, or exceptionally with a
+	 *         {@link CompletionException} whose cause is an
+	 *         {@link UncheckedIOException} if an I/O error occurred.
+	 */
+	public CompletableFuture<Container> read(int type, int file) {
+		return read(type, file, XTEAManager.NULL_KEYS);
+	}
+
+	/**
+	 * Reads a file from the cache. If the decoded file is in the container
+	 * cache the future is completed straight away. Otherwise the encoded file
+	 * is read with {@link Cache#readRaw(int, int)}, so it is served from the
+	 * raw file cache if the cache has one, and the decoded file is added to
+	 * the container cache.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 * @param keys
+	 *            The decryption keys.
+	 * @return A future that completes with the file, or exceptionally with a
+	 *         {@link CompletionException} whose cause is an
+	 *         {@link UncheckedIOException} if an I/O error occurred.
+	 */
+	public CompletableFuture<Container> read(int type, int file, int[] keys) {
+		/* we don't want people reading/manipulating these manually */
+		if (type == 255) {
+			CompletableFuture<Container> future = new CompletableFuture<>();
+			future.completeExceptionally(new CompletionException(
+					new UncheckedIOException(new IOException("Reference tables can only be read with the low level FileStore API!"))));
+			return future;
+		}
+
+		/* reuse the decoded container if the file has not changed since */
+		Container cached = cache.getCachedContainer(type, file, keys);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+
+		int version = cache.getEntryVersion(type, file);
+		long generation = cache.getGeneration();
+
+		/* read the file on the I/O executor then decode the container on the CPU executor */
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return cache.readRaw(type, file);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}, io).thenApplyAsync((ByteBuffer buffer) -> {
+			/* the raw file may be shared, but decryption happens in place */
+			if (keys[0] != 0 || keys[1] != 0 || keys[2] != 0 || keys[3] != 0) {
+				ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+				copy.put(buffer).flip();
+				buffer = copy;
+			}
+
+			Container container;
+			try {
+				container = Container.decode(buffer, keys);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+
+			cache.putCachedContainer(type, file, keys, version, generation, container);
+			return container;
+		}, cpu);
+	}
+
+}
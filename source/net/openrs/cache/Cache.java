@@ -24,14 +24,28 @@ package net.openrs.cache;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.zip.CRC32;
 
 import net.openrs.cache.ReferenceTable.Entry;
 import net.openrs.cache.type.CacheIndex;
 import net.openrs.cache.type.ConfigArchive;
+import net.openrs.cache.util.LruCache;
 import net.openrs.cache.util.XTEAManager;
 import net.openrs.util.ByteBufferUtils;
 import net.openrs.util.crypto.Djb2;
@@ -46,17 +60,64 @@ import net.openrs.util.crypto.Whirlpool;
  */
 public final class Cache implements Closeable {
 
-	private static final Map<String, Integer> identifiers = new HashMap<>();
-	
 	/**
 	 * The file store that backs this cache.
 	 */
 	private final FileStore store;
 
 	/**
-	 * The list of reference tables for this cache
+	 * The list of reference tables for this cache. A table is replaced rather
+	 * than modified once it has been published, so it can be read without
+	 * holding its lock.
+	 */
+	private final AtomicReferenceArray<ReferenceTable> references;
+
+	/**
+	 * The locks guarding the reference table of each type, so files of the
+	 * same type can be written from several threads without losing updates.
+	 */
+	private final Object[] tableLocks;
+
+	/**
+	 * The recently decoded containers, keyed by type and file id, or
+	 * {@code null} if decoded containers are not cached.
+	 */
+	private final LruCache<Long, CachedContainer> containers;
+
+	/**
+	 * The recently read encoded files, keyed by type and file id, or
+	 * {@code null} if encoded files are not cached.
+	 */
+	private final LruCache<Long, ByteBuffer> rawFiles;
+
+	/**
+	 * The recently decoded archives, keyed by type and file id, or
+	 * {@code null} if decoded archives are not cached.
+	 */
+	private final LruCache<Long, CachedArchive> archives;
+
+	/**
+	 * The contents, CRC32 checksums and whirlpool digests of the reference
+	 * tables, as last computed for the checksum table.
 	 */
-	private ReferenceTable[] references;
+	private final TableDigest[] tableDigests;
+
+	/**
+	 * The checksum table that was last encoded, or {@code null} if it has
+	 * not been encoded yet.
+	 */
+	private volatile EncodedChecksumTable encodedChecksumTable;
+
+	/**
+	 * The lock guarding {@link #generation}.
+	 */
+	private final Object cacheLock = new Object();
+
+	/**
+	 * The number of times a cached file has been invalidated, used to avoid
+	 * caching a file that was written while it was being read.
+	 */
+	private long generation;
 
 	/**
 	 * Creates a new {@link Cache} backed by the specified {@link FileStore}.
@@ -66,14 +127,80 @@ public final class Cache implements Closeable {
 	 * @throws IOException
 	 */
 	public Cache(FileStore store) throws IOException {
+		this(store, 0);
+	}
+
+	/**
+	 * Creates a new {@link Cache} backed by the specified {@link FileStore},
+	 * which keeps recently decoded containers in memory.
+	 * 
+	 * @param store
+	 *            The {@link FileStore} that backs this {@link Cache}.
+	 * @param containerCacheSize
+	 *            The maximum number of bytes of decoded containers to keep in
+	 *            memory, or {@code 0} to not keep any.
+	 * @throws IOException
+	 */
+	public Cache(FileStore store, long containerCacheSize) throws IOException {
+		this(store, containerCacheSize, 0);
+	}
+
+	/**
+	 * Creates a new {@link Cache} backed by the specified {@link FileStore},
+	 * which keeps recently decoded containers and recently read encoded files
+	 * in memory.
+	 * 
+	 * @param store
+	 *            The {@link FileStore} that backs this {@link Cache}.
+	 * @param containerCacheSize
+	 *            The maximum number of bytes of decoded containers to keep in
+	 *            memory, or {@code 0} to not keep any.
+	 * @param rawCacheSize
+	 *            The maximum number of bytes of encoded files to keep in
+	 *            memory for {@link #readRaw(int, int)}, or {@code 0} to not
+	 *            keep any.
+	 * @throws IOException
+	 */
+	public Cache(FileStore store, long containerCacheSize, long rawCacheSize) throws IOException {
+		this(store, containerCacheSize, rawCacheSize, 0);
+	}
+
+	/**
+	 * Creates a new {@link Cache} backed by the specified {@link FileStore},
+	 * which keeps recently decoded containers, recently read encoded files
+	 * and recently decoded archives in memory.
+	 * 
+	 * @param store
+	 *            The {@link FileStore} that backs this {@link Cache}.
+	 * @param containerCacheSize
+	 *            The maximum number of bytes of decoded containers to keep in
+	 *            memory, or {@code 0} to not keep any.
+	 * @param rawCacheSize
+	 *            The maximum number of bytes of encoded files to keep in
+	 *            memory for {@link #readRaw(int, int)}, or {@code 0} to not
+	 *            keep any.
+	 * @param archiveCacheSize
+	 *            The maximum number of bytes of decoded archives to keep in
+	 *            memory for {@link #read(int, int, int)}, or {@code 0} to not
+	 *            keep any.
+	 * @throws IOException
+	 */
+	public Cache(FileStore store, long containerCacheSize, long rawCacheSize, long archiveCacheSize) throws IOException {
 		this.store = store;
+		this.containers = containerCacheSize > 0 ? new LruCache<>(containerCacheSize, container -> container.weight) : null;
+		this.rawFiles = rawCacheSize > 0 ? new LruCache<>(rawCacheSize, buffer -> buffer.capacity() + 64) : null;
+		this.archives = archiveCacheSize > 0 ? new LruCache<>(archiveCacheSize, archive -> archive.weight) : null;
 
-		this.references = new ReferenceTable[store.getTypeCount()];
+		this.references = new AtomicReferenceArray<>(store.getTypeCount());
+		this.tableDigests = new TableDigest[store.getTypeCount()];
+		this.tableLocks = new Object[store.getTypeCount()];
+		for (int type = 0; type < tableLocks.length; type++)
+			tableLocks[type] = new Object();
 		
 		for (int type = 0; type < store.getTypeCount(); type++) {
 			ByteBuffer buf = store.read(255, type);
 			if (buf != null && buf.limit() > 0) {
-				references[type] = ReferenceTable.decode(Container.decode(buf, XTEAManager.lookupTable(type)).getData());
+				references.set(type, ReferenceTable.decode(Container.decode(buf, XTEAManager.lookupTable(type)).getData()));
 			}
 		}
 	}
@@ -84,16 +211,21 @@ public final class Cache implements Closeable {
 	}
 
 	public final ReferenceTable getReferenceTable(int type) {
-		return references[type];
+		return references.get(type);
 	}
 
 	public final ReferenceTable getReferenceTable(CacheIndex index) {
-		return references[index.getID()];
+		return references.get(index.getID());
 	}
 	
 	/**
 	 * Computes the {@link ChecksumTable} for this cache. The checksum table
 	 * forms part of the so-called "update keys".
+	 * <p />
+	 * The entries are computed in parallel on the common
+	 * {@link ForkJoinPool}. The whirlpool digest of each reference table is
+	 * remembered along with its CRC32 checksum, so only reference tables that
+	 * have changed since the last call are hashed again.
 	 * 
 	 * @return The {@link ChecksumTable}.
 	 * @throws IOException
@@ -105,39 +237,99 @@ public final class Cache implements Closeable {
 		ChecksumTable table = new ChecksumTable(size);
 
 		/*
-		 * loop through all the reference tables and get their CRC and versions
-		 */
-		for (int i = 0; i < size; i++) {
-			int crc = 0;
-			int version = 0;
-			int files = 0;
-			int archiveSize = 0;
-			byte[] whirlpool = new byte[64];
-
-			if (store.hasData()) {
-				/*
-				 * if there is actually a reference table, calculate the CRC,
-				 * version and whirlpool hash
-				 */
-				ByteBuffer buf = store.read(255, i);
-				if (buf != null && buf.limit() > 0) {
-					ReferenceTable ref = references[i];
-					crc = ByteBufferUtils.getCrcChecksum(buf);
-					version = ref.getVersion();
-					files = ref.capacity();
-					archiveSize = ref.getArchiveSize();
-					buf.position(0);
-					whirlpool = ByteBufferUtils.getWhirlpoolDigest(buf);
+		 * go through all the reference tables at once and get their CRC and
+		 * versions
+		 */
+		ChecksumTable.Entry[] entries;
+		try {
+			entries = IntStream.range(0, size).parallel().mapToObj(type -> {
+				try {
+					return createChecksumEntry(type);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
 				}
-			}
-
-			table.setEntry(i, new ChecksumTable.Entry(crc, version, files, archiveSize, whirlpool));
+			}).toArray(ChecksumTable.Entry[]::new);
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
 		}
 
+		for (int i = 0; i < size; i++)
+			table.setEntry(i, entries[i]);
+
 		/* return the table */
 		return table;
 	}
 
+	/**
+	 * Computes the entry of a reference table in the {@link ChecksumTable}.
+	 * 
+	 * @param type
+	 *            The type of file the reference table describes.
+	 * @return The entry.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private ChecksumTable.Entry createChecksumEntry(int type) throws IOException {
+		if (!store.hasData())
+			return new ChecksumTable.Entry(0, 0, 0, 0, new byte[64]);
+
+		/*
+		 * if there is actually a reference table, calculate the CRC, version
+		 * and whirlpool hash
+		 */
+		ByteBuffer buf = store.read(255, type);
+		if (buf == null || buf.limit() == 0)
+			return new ChecksumTable.Entry(0, 0, 0, 0, new byte[64]);
+
+		ReferenceTable ref = references.get(type);
+		int crc = ByteBufferUtils.getCrcChecksum(buf);
+
+		/*
+		 * the whirlpool digest is expensive, so reuse it if the table has not
+		 * changed, comparing the bytes as well as the CRC as two different
+		 * tables can share a CRC
+		 */
+		buf.position(0);
+		TableDigest digest = tableDigests[type];
+		if (digest == null || digest.crc != crc || !digest.table.equals(buf)) {
+			ByteBuffer table = buf.asReadOnlyBuffer();
+			digest = new TableDigest(crc, table, ByteBufferUtils.getWhirlpoolDigest(buf));
+			tableDigests[type] = digest;
+		}
+
+		return new ChecksumTable.Entry(crc, ref.getVersion(), ref.capacity(), ref.getArchiveSize(), digest.whirlpool.clone());
+	}
+
+	/**
+	 * Computes and encodes the {@link ChecksumTable} for this cache. The
+	 * encoded table is kept, and returned again for as long as the checksum
+	 * table and the arguments stay the same, so the RSA encryption only has
+	 * to be done when the cache changes.
+	 * 
+	 * @param whirlpool
+	 *            If whirlpool digests should be encoded.
+	 * @param modulus
+	 *            The modulus, or {@code null} to not encrypt the digest.
+	 * @param privateKey
+	 *            The private key, or {@code null} to not encrypt the digest.
+	 * @return A read-only buffer holding the encoded table.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public ByteBuffer encodeChecksumTable(boolean whirlpool, BigInteger modulus, BigInteger privateKey)
+			throws IOException {
+		ChecksumTable table = createChecksumTable();
+
+		EncodedChecksumTable encoded = encodedChecksumTable;
+		if (encoded != null && encoded.matches(table, whirlpool, modulus, privateKey))
+			return encoded.buffer.duplicate();
+
+		encoded = new EncodedChecksumTable(table, whirlpool, modulus, privateKey,
+				table.encode(whirlpool, modulus, privateKey).asReadOnlyBuffer());
+		encodedChecksumTable = encoded;
+		return encoded.buffer.duplicate();
+	}
+
 	/**
 	 * Gets the number of files of the specified type.
 	 * 
@@ -160,6 +352,39 @@ public final class Cache implements Closeable {
 		return store;
 	}
 
+	/**
+	 * Gets the cache of recently decoded containers, which counts its hits,
+	 * misses and evictions.
+	 * 
+	 * @return The container cache, or {@code null} if decoded containers are
+	 *         not cached.
+	 */
+	public LruCache<?, ?> getContainerCache() {
+		return containers;
+	}
+
+	/**
+	 * Gets the cache of recently read encoded files, which counts its hits,
+	 * misses and evictions.
+	 * 
+	 * @return The raw file cache, or {@code null} if encoded files are not
+	 *         cached.
+	 */
+	public LruCache<?, ?> getRawCache() {
+		return rawFiles;
+	}
+
+	/**
+	 * Gets the cache of recently decoded archives, which counts its hits,
+	 * misses and evictions.
+	 * 
+	 * @return The archive cache, or {@code null} if decoded archives are not
+	 *         cached.
+	 */
+	public LruCache<?, ?> getArchiveCache() {
+		return archives;
+	}
+
 	/**
 	 * Gets the number of index files, not including the meta index file.
 	 * 
@@ -213,16 +438,47 @@ public final class Cache implements Closeable {
 	 *             if an I/O error occurred.
 	 */
 	public Container read(int type, int file) throws IOException {
+		return read(type, file, XTEAManager.NULL_KEYS);
+	}
+
+	/**
+	 * Reads a file from the cache.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 * @param keys
+	 *            The decryption keys.
+	 * @return The file.
+	 * @throws IOException
+	 *             if an I/O error occurred.
+	 */
+	public Container read(int type, int file, int[] keys) throws IOException {
 		/* we don't want people reading/manipulating these manually */
 		if (type == 255)
 			throw new IOException("Reference tables can only be read with the low level FileStore API!");
 
 		/* delegate the call to the file store then decode the container */
-		return Container.decode(store.read(type, file));
+		if (containers == null)
+			return Container.decode(store.read(type, file), keys);
+
+		/* reuse the decoded container if the file has not changed since */
+		Container container = getCachedContainer(type, file, keys);
+		if (container != null)
+			return container;
+
+		int version = getEntryVersion(type, file);
+		long generation = getGeneration();
+
+		container = Container.decode(store.read(type, file), keys);
+		putCachedContainer(type, file, keys, version, generation, container);
+		return container;
 	}
 
 	/**
-	 * Reads a file from the cache.
+	 * Gets a file from the container cache, if it was decoded with the same
+	 * keys and has not been written since.
 	 * 
 	 * @param type
 	 *            The type of file.
@@ -230,46 +486,501 @@ public final class Cache implements Closeable {
 	 *            The file id.
 	 * @param keys
 	 *            The decryption keys.
-	 * @return The file.
+	 * @return A copy of the cached container, or {@code null} if there is no
+	 *         such container.
+	 */
+	Container getCachedContainer(int type, int file, int[] keys) {
+		if (containers == null)
+			return null;
+
+		int version = getEntryVersion(type, file);
+		CachedContainer cached = containers.get(getCacheKey(type, file),
+				c -> c.version == version && Arrays.equals(c.keys, keys));
+		return cached == null ? null : cached.container.duplicate();
+	}
+
+	/**
+	 * Puts a decoded file into the container cache, unless a cached file has
+	 * been written since it was read.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 * @param keys
+	 *            The keys the file was decrypted with.
+	 * @param version
+	 *            The version of the file, taken before it was read.
+	 * @param generation
+	 *            The generation, taken before the file was read.
+	 * @param container
+	 *            The decoded container.
+	 */
+	void putCachedContainer(int type, int file, int[] keys, int version, long generation, Container container) {
+		if (containers == null)
+			return;
+
+		synchronized (cacheLock) {
+			if (this.generation == generation)
+				containers.put(getCacheKey(type, file), new CachedContainer(version, keys.clone(), container.duplicate()));
+		}
+	}
+
+	/**
+	 * Gets the number of times a cached file has been invalidated, which is
+	 * taken before a file is read and checked before it is cached.
+	 * 
+	 * @return The generation.
+	 */
+	long getGeneration() {
+		synchronized (cacheLock) {
+			return generation;
+		}
+	}
+
+	/**
+	 * Reads a file from the cache exactly as it is stored, without decoding
+	 * the container. This is the form files are served to clients in, so
+	 * they can be sent without being decompressed and compressed again.
+	 * <p />
+	 * Reference tables may also be read, as type {@code 255}. Files written
+	 * directly to the {@link FileStore} rather than through this cache are
+	 * not noticed by the raw file cache.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 * @return A read-only buffer holding the encoded container.
 	 * @throws IOException
 	 *             if an I/O error occurred.
 	 */
-	public Container read(int type, int file, int[] keys) throws IOException {
+	public ByteBuffer readRaw(int type, int file) throws IOException {
+		if (rawFiles == null)
+			return store.read(type, file).asReadOnlyBuffer();
+
+		Long key = getCacheKey(type, file);
+		ByteBuffer cached = rawFiles.get(key);
+		if (cached != null)
+			return cached.duplicate();
+
+		long generation;
+		synchronized (cacheLock) {
+			generation = this.generation;
+		}
+
+		ByteBuffer buffer = store.read(type, file).asReadOnlyBuffer();
+		synchronized (cacheLock) {
+			if (this.generation == generation)
+				rawFiles.put(key, buffer.duplicate());
+		}
+		return buffer;
+	}
+
+	/**
+	 * Gets the key of a file in the container, raw file and archive caches.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 * @return The key.
+	 */
+	private static Long getCacheKey(int type, int file) {
+		return ((long) type << 32) | (file & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the version of a file in its reference table.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 * @return The version, or {@code -1} if the file has no entry.
+	 */
+	int getEntryVersion(int type, int file) {
+		ReferenceTable table = type >= 0 && type < references.length() ? references.get(type) : null;
+		ReferenceTable.Entry entry = table == null ? null : table.getEntry(file);
+		return entry == null ? -1 : entry.getVersion();
+	}
+
+	/**
+	 * Removes a file that has been written from the container, raw file and
+	 * archive caches.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The file id.
+	 */
+	private void invalidate(int type, int file) {
+		if (containers == null && rawFiles == null && archives == null)
+			return;
+
+		synchronized (cacheLock) {
+			generation++;
+			if (containers != null)
+				containers.remove(getCacheKey(type, file));
+			if (rawFiles != null)
+				rawFiles.remove(getCacheKey(type, file));
+			if (archives != null)
+				archives.remove(getCacheKey(type, file));
+		}
+	}
+
+	/**
+	 * A decoded container held by the container cache.
+	 */
+	private static final class CachedContainer {
+
+		/**
+		 * The version of the file when it was decoded.
+		 */
+		private final int version;
+
+		/**
+		 * The keys the file was decrypted with.
+		 */
+		private final int[] keys;
+
+		/**
+		 * The decoded container.
+		 */
+		private final Container container;
+
+		/**
+		 * The approximate number of bytes held by the container.
+		 */
+		private final int weight;
+
+		/**
+		 * Creates a new cached container.
+		 * 
+		 * @param version
+		 *            The version of the file.
+		 * @param keys
+		 *            The keys the file was decrypted with.
+		 * @param container
+		 *            The decoded container.
+		 */
+		CachedContainer(int version, int[] keys, Container container) {
+			this.version = version;
+			this.keys = keys;
+			this.container = container;
+			this.weight = container.getData().capacity() + 64;
+		}
+
+	}
+
+	/**
+	 * A decoded archive held by the archive cache.
+	 */
+	private static final class CachedArchive {
+
+		/**
+		 * The version of the file when it was decoded.
+		 */
+		private final int version;
+
+		/**
+		 * The decoded archive.
+		 */
+		private final Archive archive;
+
+		/**
+		 * The approximate number of bytes held by the archive.
+		 */
+		private final int weight;
+
+		/**
+		 * Creates a new cached archive.
+		 * 
+		 * @param version
+		 *            The version of the file.
+		 * @param archive
+		 *            The decoded archive.
+		 */
+		CachedArchive(int version, Archive archive) {
+			this.version = version;
+			this.archive = archive;
+
+			int weight = 64;
+			for (int id = 0; id < archive.size(); id++) {
+				ByteBuffer entry = archive.getEntry(id);
+				weight += 64 + (entry == null ? 0 : entry.capacity());
+			}
+			this.weight = weight;
+		}
+
+	}
+
+	/**
+	 * The whirlpool digest of a reference table, along with the CRC32
+	 * checksum and contents of the table it was computed for.
+	 */
+	private static final class TableDigest {
+
+		/**
+		 * The CRC32 checksum of the reference table.
+		 */
+		private final int crc;
+
+		/**
+		 * The encoded reference table.
+		 */
+		private final ByteBuffer table;
+
+		/**
+		 * The whirlpool digest of the reference table.
+		 */
+		private final byte[] whirlpool;
+
+		/**
+		 * Creates a new table digest.
+		 * 
+		 * @param crc
+		 *            The CRC32 checksum of the reference table.
+		 * @param table
+		 *            The encoded reference table.
+		 * @param whirlpool
+		 *            The whirlpool digest of the reference table.
+		 */
+		TableDigest(int crc, ByteBuffer table, byte[] whirlpool) {
+			this.crc = crc;
+			this.table = table;
+			this.whirlpool = whirlpool;
+		}
+
+	}
+
+	/**
+	 * An encoded checksum table, along with the table and arguments it was
+	 * encoded from.
+	 */
+	private static final class EncodedChecksumTable {
+
+		/**
+		 * The checksum table.
+		 */
+		private final ChecksumTable table;
+
+		/**
+		 * If whirlpool digests were encoded.
+		 */
+		private final boolean whirlpool;
+
+		/**
+		 * The modulus the digest was encrypted with.
+		 */
+		private final BigInteger modulus;
+
+		/**
+		 * The private key the digest was encrypted with.
+		 */
+		private final BigInteger privateKey;
+
+		/**
+		 * The encoded table.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * Creates a new encoded checksum table.
+		 * 
+		 * @param table
+		 *            The checksum table.
+		 * @param whirlpool
+		 *            If whirlpool digests were encoded.
+		 * @param modulus
+		 *            The modulus.
+		 * @param privateKey
+		 *            The private key.
+		 * @param buffer
+		 *            The encoded table.
+		 */
+		EncodedChecksumTable(ChecksumTable table, boolean whirlpool, BigInteger modulus, BigInteger privateKey,
+				ByteBuffer buffer) {
+			this.table = table;
+			this.whirlpool = whirlpool;
+			this.modulus = modulus;
+			this.privateKey = privateKey;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Checks if encoding the specified table with the specified arguments
+		 * would produce this encoded table.
+		 * 
+		 * @param table
+		 *            The checksum table.
+		 * @param whirlpool
+		 *            If whirlpool digests should be encoded.
+		 * @param modulus
+		 *            The modulus.
+		 * @param privateKey
+		 *            The private key.
+		 * @return {@code true} if so, {@code false} if not.
+		 */
+		boolean matches(ChecksumTable table, boolean whirlpool, BigInteger modulus, BigInteger privateKey) {
+			if (this.whirlpool != whirlpool || !Objects.equals(this.modulus, modulus)
+					|| !Objects.equals(this.privateKey, privateKey) || this.table.getSize() != table.getSize())
+				return false;
+
+			for (int i = 0; i < table.getSize(); i++) {
+				ChecksumTable.Entry a = this.table.getEntry(i), b = table.getEntry(i);
+				if (a.getCrc() != b.getCrc() || a.getVersion() != b.getVersion() || a.getFileCount() != b.getFileCount()
+						|| a.getSize() != b.getSize() || !Arrays.equals(a.getWhirlpool(), b.getWhirlpool()))
+					return false;
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 * Reads several files of the same type from the cache. The files are read
+	 * in the order they are stored on disk rather than the order of the ids.
+	 * 
+	 * @param type
+	 *            The type of the files.
+	 * @param files
+	 *            The file ids.
+	 * @return A map of file ids to files. Files that do not exist or are empty
+	 *         are omitted.
+	 * @throws IOException
+	 *             if an I/O error occurred, or a file could not be decoded.
+	 */
+	public Map<Integer, Container> readAll(int type, int[] files) throws IOException {
+		return readAll(type, files, file -> XTEAManager.NULL_KEYS);
+	}
+
+	/**
+	 * Reads several encrypted files of the same type from the cache, such as
+	 * the landscapes of every region. The files are read in the order they
+	 * are stored on disk, and are then decrypted and decompressed in parallel
+	 * on the common {@link ForkJoinPool}.
+	 * <p />
+	 * If any file cannot be decoded, for example because its keys are wrong or
+	 * it is corrupt, the whole read fails with an {@link IOException} for one
+	 * of the files that could not be decoded. Exceptions thrown by the keys
+	 * function are not caught, and propagate to the caller.
+	 * 
+	 * @param type
+	 *            The type of the files.
+	 * @param files
+	 *            The file ids.
+	 * @param keys
+	 *            The function that gives the decryption keys of each file.
+	 * @return A map of file ids to files. Files that do not exist or are empty
+	 *         are omitted.
+	 * @throws IOException
+	 *             if an I/O error occurred, or a file could not be decoded.
+	 */
+	public Map<Integer, Container> readAll(int type, int[] files, IntFunction<int[]> keys) throws IOException {
 		/* we don't want people reading/manipulating these manually */
 		if (type == 255)
 			throw new IOException("Reference tables can only be read with the low level FileStore API!");
 
-		/* delegate the call to the file store then decode the container */
-		return Container.decode(store.read(type, file), keys);
+		/* delegate the call to the file store then decode the containers */
+		Map<Integer, ByteBuffer> buffers = store.readAll(type, files);
+		try {
+			return buffers.entrySet().parallelStream().collect(Collectors.toConcurrentMap(Map.Entry::getKey, file -> {
+				int[] fileKeys = keys.apply(file.getKey());
+				try {
+					return Container.decode(file.getValue(), fileKeys);
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				} catch (RuntimeException ex) {
+					/* a corrupt container can also fail with an unchecked exception */
+					throw new UncheckedIOException(new IOException("Corrupt container for file " + file.getKey(), ex));
+				}
+			}));
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
 	}
 
 	/**
-	 * Reads a file contained in an archive in the cache.
+	 * Reads a file contained in an archive in the cache. The archive is looked
+	 * up in the reference table held in memory, and is kept in the archive
+	 * cache if there is one, so reading several members of an archive only
+	 * decodes it once.
 	 * 
 	 * @param type
 	 *            The type of the file.
 	 * @param file
 	 *            The archive id.
-	 * @param file
+	 * @param member
 	 *            The file within the archive.
-	 * @return The file.
+	 * @return A read-only view of the file.
 	 * @throws IOException
 	 *             if an I/O error occurred.
 	 */
 	public ByteBuffer read(int type, int file, int member) throws IOException {
-		/* grab the container and the reference table */
-		Container container = read(type, file);
-		Container tableContainer = Container.decode(store.read(255, type));
-		ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
-
-		/* check if the file/member are valid */
-		ReferenceTable.Entry entry = table.getEntry(file);
+		/* check if the file/member are valid, using the reference table already in memory */
+		ReferenceTable table = type >= 0 && type < references.length() ? references.get(type) : null;
+		ReferenceTable.Entry entry = table == null ? null : table.getEntry(file);
 		if (entry == null || member < 0 || member >= entry.capacity())
 			throw new FileNotFoundException();
 
-		/* extract the entry from the archive */
-		Archive archive = Archive.decode(container.getData(), entry.capacity());
-		return archive.getEntry(member);
+		/* extract the entry from the archive, handing out a view so the archive can be shared */
+		ByteBuffer buffer = readArchive(type, file, entry).getEntry(member);
+		return buffer == null ? null : buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads and decodes an archive in the cache, reusing a recently decoded
+	 * copy if the file has not changed since.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param file
+	 *            The archive id.
+	 * @param entry
+	 *            The entry of the archive in its reference table.
+	 * @return The archive.
+	 * @throws IOException
+	 *             if an I/O error occurred.
+	 */
+	private Archive readArchive(int type, int file, ReferenceTable.Entry entry) throws IOException {
+		int size = entry.capacity();
+		if (archives == null)
+			return Archive.decode(read(type, file).getData(), size);
+
+		Long key = getCacheKey(type, file);
+		int version = entry.getVersion();
+		CachedArchive cached = archives.get(key, a -> a.version == version && a.archive.size() == size);
+		if (cached != null)
+			return cached.archive;
+
+		long generation;
+		synchronized (cacheLock) {
+			generation = this.generation;
+		}
+
+		Archive archive = Archive.decode(read(type, file).getData(), size);
+		synchronized (cacheLock) {
+			if (this.generation == generation)
+				archives.put(key, new CachedArchive(version, archive));
+		}
+		return archive;
+	}
+
+	/**
+	 * Gets the lock guarding the reference table of the specified type.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @return The lock.
+	 * @throws FileNotFoundException
+	 *             if the type does not exist.
+	 */
+	private Object getTableLock(int type) throws FileNotFoundException {
+		if (type < 0 || type >= tableLocks.length)
+			throw new FileNotFoundException();
+
+		return tableLocks[type];
 	}
 
 	/**
@@ -279,17 +990,31 @@ public final class Cache implements Closeable {
 	 *            The type of file.
 	 * @param name
 	 *            The name of the file
-	 * @return The file id.
+	 * @return The file id, or {@code -1} if there is no such file.
 	 * @throws java.io.IOException
 	 */
 	public int getFileId(int type, String name) throws IOException {
-		if (!identifiers.containsKey(name)) {
-			ReferenceTable table = references[type];
-			identifiers.put(name, table.getIdentifiers().getFile(Djb2.hash(name)));
-		}
-		
-		Integer i = identifiers.get(name);
-		return i == null ? -1 : i.intValue();
+		return getFileId(type, Djb2.hash(name));
+	}
+
+	/**
+	 * Gets a file id from the cache by the {@link Djb2} hash of its name. The
+	 * hash is looked up in the identifier table of the reference table of the
+	 * specified type, which is only built once.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param identifier
+	 *            The hash of the name of the file.
+	 * @return The file id, or {@code -1} if there is no such file.
+	 * @throws java.io.IOException
+	 */
+	public int getFileId(int type, int identifier) throws IOException {
+		ReferenceTable table = type >= 0 && type < references.length() ? references.get(type) : null;
+		if (table == null)
+			return -1;
+
+		return table.getIdentifiers().getFile(identifier);
 	}
 
 	/**
@@ -329,16 +1054,103 @@ public final class Cache implements Closeable {
 		if (type == 255)
 			throw new IOException("Reference tables can only be modified with the low level FileStore API!");
 
+		synchronized (getTableLock(type)) {
+			/* decode the reference table for this index */
+			Container tableContainer = Container.decode(store.read(255, type));
+			ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
+
+			/* encode the file and update its entry */
+			ByteBuffer buffer = encode(table, file, container, keys);
+
+			/* save the reference table */
+			writeReferenceTable(type, tableContainer, table, new int[] { file });
+
+			/* save the file itself */
+			store.write(type, file, buffer);
+			invalidate(type, file);
+		}
+	}
+	
+	/**
+	 * Writes a file contained in an archive to the cache.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The id of the archive.
+	 * @param member
+	 *            The file within the archive.
+	 * @param data
+	 *            The data to write.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void write(int type, int file, int member, ByteBuffer data) throws IOException {
+		write(type, file, member, data, XTEAManager.NULL_KEYS);
+	}
+
+	/**
+	 * Writes a file contained in an archive to the cache.
+	 * 
+	 * @param type
+	 *            The type of file.
+	 * @param file
+	 *            The id of the archive.
+	 * @param member
+	 *            The file within the archive.
+	 * @param data
+	 *            The data to write.
+	 * @param keys
+	 *            The encryption keys.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void write(int type, int file, int member, ByteBuffer data, int[] keys) throws IOException {
+		/* we don't want people reading/manipulating these manually */
+		if (type == 255)
+			throw new IOException("Reference tables can only be modified with the low level FileStore API!");
+
+		synchronized (getTableLock(type)) {
+			/* grab the reference table */
+			Container tableContainer = Container.decode(store.read(255, type));
+			ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
+
+			/* put the member into the archive and encode it */
+			Container container = putMembers(table, type, file, Collections.singletonMap(member, data), keys);
+			ByteBuffer buffer = encode(table, file, container, keys);
+
+			/* write the reference table out again */
+			writeReferenceTable(type, tableContainer, table, new int[] { file });
+
+			/* and write the archive back to memory */
+			store.write(type, file, buffer);
+			invalidate(type, file);
+		}
+	}
+
+	/**
+	 * Encodes a file and updates the version, checksum and digest of its entry
+	 * in the specified {@link ReferenceTable}.
+	 * 
+	 * @param table
+	 *            The reference table.
+	 * @param file
+	 *            The file id.
+	 * @param container
+	 *            The {@link Container} to encode.
+	 * @param keys
+	 *            The encryption keys.
+	 * @return The encoded file.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private ByteBuffer encode(ReferenceTable table, int file, Container container, int[] keys) throws IOException {
 		/* increment the container's version */
 		container.setVersion(container.getVersion()/* + 1 */);
 
-		/* decode the reference table for this index */
-		Container tableContainer = Container.decode(store.read(255, type));
-		ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
-
 		/* grab the bytes we need for the checksum */
 		ByteBuffer buffer = container.encode(keys);
-		
+	
 		/* last two bytes are the version and shouldn't be included */
 		byte[] bytes = new byte[buffer.limit() - 2];
 		buffer.mark();
@@ -369,56 +1181,29 @@ public final class Cache implements Closeable {
 			entry.setWhirlpool(whirlpool);
 		}
 
-		/* update the reference table version */
-		table.setVersion(table.getVersion()/* + 1 */);
-
-		/* save the reference table */
-		tableContainer = new Container(tableContainer.getType(), table.encode());
-		store.write(255, type, tableContainer.encode());
-
-		/* save the file itself */
-		store.write(type, file, buffer);
-	}
-	
-	/**
-	 * Writes a file contained in an archive to the cache.
-	 * 
-	 * @param type
-	 *            The type of file.
-	 * @param file
-	 *            The id of the archive.
-	 * @param member
-	 *            The file within the archive.
-	 * @param data
-	 *            The data to write.
-	 * @throws IOException
-	 *             if an I/O error occurs.
-	 */
-	public void write(int type, int file, int member, ByteBuffer data) throws IOException {
-		write(type, file, member, data, XTEAManager.NULL_KEYS);
+		return buffer;
 	}
 
 	/**
-	 * Writes a file contained in an archive to the cache.
+	 * Puts member files into an archive and adds their child entries to the
+	 * specified {@link ReferenceTable}.
 	 * 
+	 * @param table
+	 *            The reference table.
 	 * @param type
 	 *            The type of file.
 	 * @param file
 	 *            The id of the archive.
-	 * @param member
-	 *            The file within the archive.
-	 * @param data
-	 *            The data to write.
+	 * @param members
+	 *            The data of the member files, keyed by member id.
 	 * @param keys
 	 *            The encryption keys.
+	 * @return The {@link Container} holding the updated archive.
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
-	public void write(int type, int file, int member, ByteBuffer data, int[] keys) throws IOException {
-		/* grab the reference table */
-		Container tableContainer = Container.decode(store.read(255, type));
-		ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
-
+	private Container putMembers(ReferenceTable table, int type, int file, Map<Integer, ByteBuffer> members,
+			int[] keys) throws IOException {
 		/* create a new entry if necessary */
 		ReferenceTable.Entry entry = table.getEntry(file);
 		int oldArchiveSize = -1;
@@ -430,37 +1215,45 @@ public final class Cache implements Closeable {
 		}
 
 		/* add a child entry if one does not exist */
-		ReferenceTable.ChildEntry child = entry.getEntry(member);
-		if (child == null) {
-			child = new ReferenceTable.ChildEntry(member);
-			entry.putEntry(member, child);
+		int size = 0;
+		for (int member : members.keySet()) {
+			ReferenceTable.ChildEntry child = entry.getEntry(member);
+			if (child == null) {
+				child = new ReferenceTable.ChildEntry(member);
+				entry.putEntry(member, child);
+			}
+			size = Math.max(size, member + 1);
 		}
 
 		/* extract the current archive into memory so we can modify it */
+		Container container = null;
+		if (file < store.getFileCount(type) && oldArchiveSize != -1)
+			container = read(type, file, keys);
+
 		Archive archive;
 		int containerType, containerVersion;
-		if (file < store.getFileCount(type) && oldArchiveSize != -1) {
-			Container container = read(type, file);
+		if (container != null) {
 			containerType = container.getType();
 			containerVersion = container.getVersion();
 			archive = Archive.decode(container.getData(), oldArchiveSize);
 		} else {
 			containerType = Container.COMPRESSION_GZIP;
 			containerVersion = 1;
-			archive = new Archive(member + 1);
+			archive = new Archive(size);
 		}
 
 		/* expand the archive if it is not large enough */
-		if (member >= archive.size()) {
-			Archive newArchive = new Archive(member + 1);
+		if (size > archive.size()) {
+			Archive newArchive = new Archive(size);
 			for (int id = 0; id < archive.size(); id++) {
 				newArchive.putEntry(id, archive.getEntry(id));
 			}
 			archive = newArchive;
 		}
 
-		/* put the member into the archive */
-		archive.putEntry(member, data);
+		/* put the members into the archive */
+		for (Map.Entry<Integer, ByteBuffer> member : members.entrySet())
+			archive.putEntry(member.getKey(), member.getValue());
 
 		/* create 'dummy' entries */
 		for (int id = 0; id < archive.size(); id++) {
@@ -470,12 +1263,279 @@ public final class Cache implements Closeable {
 			}
 		}
 
-		/* write the reference table out again */
-		tableContainer = new Container(tableContainer.getType(), table.encode());
+		return new Container(containerType, archive.encode(), containerVersion);
+	}
+
+	/**
+	 * Writes a reference table back to the cache.
+	 * 
+	 * @param type
+	 *            The type of file the reference table describes.
+	 * @param tableContainer
+	 *            The {@link Container} the reference table was read from.
+	 * @param table
+	 *            The updated reference table.
+	 * @param files
+	 *            The ids of the files whose entries were updated.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void writeReferenceTable(int type, Container tableContainer, ReferenceTable table, int[] files) throws IOException {
+		/* update the reference table version */
+		table.setVersion(table.getVersion()/* + 1 */);
+
+		/* patch the updated entries into a copy of the old table if its layout is unchanged */
+		ByteBuffer data = ByteBuffer.allocate(tableContainer.getData().remaining());
+		data.put(tableContainer.getData()).flip();
+		for (int file : files) {
+			if (!table.patch(data, file)) {
+				/* otherwise encode the whole table again */
+				data = table.encode();
+				break;
+			}
+		}
+
+		/* save the reference table */
+		tableContainer = new Container(tableContainer.getType(), data);
 		store.write(255, type, tableContainer.encode());
+		references.set(type, table);
+		invalidate(255, type);
+	}
+
+	/**
+	 * Begins a batch of writes. Writes made through the batch are buffered and
+	 * applied when it is committed, so each reference table is only decoded,
+	 * encoded and written once no matter how many of its files are changed.
+	 * 
+	 * @return The batch.
+	 */
+	public Batch beginBatch() {
+		return new Batch();
+	}
+
+	/**
+	 * A {@link Batch} buffers writes to the cache until it is committed.
+	 * <p />
+	 * A batch may only be used by one thread at a time. The buffers passed to
+	 * it must not be modified until it has been committed.
+	 * <p />
+	 * Writing a whole file replaces any member files written to it earlier in
+	 * the batch. As the number of members in a container is only known from
+	 * the reference table, member files cannot be written to a file that has
+	 * already been replaced in the same batch.
+	 */
+	public final class Batch {
+
+		/**
+		 * The buffered writes, keyed by type and file id, in the order they
+		 * were first made.
+		 */
+		private final Map<Long, PendingWrite> writes = new LinkedHashMap<>();
+
+		/**
+		 * Creates a new, empty batch.
+		 */
+		private Batch() {
+
+		}
+
+		/**
+		 * Gets the buffered write of a file, creating it if necessary.
+		 * 
+		 * @param type
+		 *            The type of file.
+		 * @param file
+		 *            The file id.
+		 * @return The buffered write.
+		 * @throws IOException
+		 *             if the type does not exist or is the reference tables.
+		 */
+		private PendingWrite getWrite(int type, int file) throws IOException {
+			/* we don't want people reading/manipulating these manually */
+			if (type == 255)
+				throw new IOException("Reference tables can only be modified with the low level FileStore API!");
+
+			getTableLock(type);
+			PendingWrite write = writes.computeIfAbsent(((long) type << 32) | (file & 0xFFFFFFFFL),
+					key -> new PendingWrite(type, file));
+			return write;
+		}
+
+		/**
+		 * Writes a file to the cache when the batch is committed.
+		 * 
+		 * @param type
+		 *            The type of file.
+		 * @param file
+		 *            The file id.
+		 * @param container
+		 *            The {@link Container} to write.
+		 * @throws IOException
+		 *             if the type does not exist.
+		 */
+		public void write(int type, int file, Container container) throws IOException {
+			write(type, file, container, XTEAManager.NULL_KEYS);
+		}
+
+		/**
+		 * Writes a file to the cache when the batch is committed.
+		 * 
+		 * @param type
+		 *            The type of file.
+		 * @param file
+		 *            The file id.
+		 * @param container
+		 *            The {@link Container} to write.
+		 * @param keys
+		 *            The encryption keys.
+		 * @throws IOException
+		 *             if the type does not exist.
+		 */
+		public void write(int type, int file, Container container, int[] keys) throws IOException {
+			PendingWrite write = getWrite(type, file);
+			write.container = container;
+			write.members = null;
+			write.keys = keys;
+		}
+
+		/**
+		 * Writes a file contained in an archive to the cache when the batch is
+		 * committed.
+		 * 
+		 * @param type
+		 *            The type of file.
+		 * @param file
+		 *            The id of the archive.
+		 * @param member
+		 *            The file within the archive.
+		 * @param data
+		 *            The data to write.
+		 * @throws IOException
+		 *             if the type does not exist or the file has already been
+		 *             replaced in this batch.
+		 */
+		public void write(int type, int file, int member, ByteBuffer data) throws IOException {
+			write(type, file, member, data, XTEAManager.NULL_KEYS);
+		}
+
+		/**
+		 * Writes a file contained in an archive to the cache when the batch is
+		 * committed.
+		 * 
+		 * @param type
+		 *            The type of file.
+		 * @param file
+		 *            The id of the archive.
+		 * @param member
+		 *            The file within the archive.
+		 * @param data
+		 *            The data to write.
+		 * @param keys
+		 *            The encryption keys.
+		 * @throws IOException
+		 *             if the type does not exist or the file has already been
+		 *             replaced in this batch.
+		 */
+		public void write(int type, int file, int member, ByteBuffer data, int[] keys) throws IOException {
+			PendingWrite write = getWrite(type, file);
+			if (write.container != null)
+				throw new IOException("Cannot write member files to a file replaced in the same batch.");
+
+			if (write.members == null)
+				write.members = new TreeMap<>();
+
+			write.members.put(member, data);
+			write.keys = keys;
+		}
+
+		/**
+		 * Applies the buffered writes. Each affected reference table is
+		 * updated and written once, after all of its files have been written.
+		 * The batch is empty afterwards and may be reused.
+		 * 
+		 * @throws IOException
+		 *             if an I/O error occurs.
+		 */
+		public void commit() throws IOException {
+			/* group the writes by type */
+			Map<Integer, List<PendingWrite>> types = new TreeMap<>();
+			for (PendingWrite write : writes.values())
+				types.computeIfAbsent(write.type, type -> new ArrayList<>()).add(write);
+
+			for (Map.Entry<Integer, List<PendingWrite>> pending : types.entrySet()) {
+				int type = pending.getKey();
+				synchronized (getTableLock(type)) {
+					/* decode the reference table for this index */
+					Container tableContainer = Container.decode(store.read(255, type));
+					ReferenceTable table = ReferenceTable.decode(tableContainer.getData());
+
+					/* save the files, updating their entries */
+					for (PendingWrite write : pending.getValue()) {
+						Container container = write.container;
+						if (write.members != null)
+							container = putMembers(table, type, write.file, write.members, write.keys);
+
+						store.write(type, write.file, encode(table, write.file, container, write.keys));
+						invalidate(type, write.file);
+					}
+
+					/* and the reference table, once */
+					int[] files = pending.getValue().stream().mapToInt(write -> write.file).toArray();
+					writeReferenceTable(type, tableContainer, table, files);
+				}
+
+				/* forget the writes of this type once they have been applied */
+				for (PendingWrite write : pending.getValue())
+					writes.remove(((long) type << 32) | (write.file & 0xFFFFFFFFL));
+			}
+		}
+
+	}
+
+	/**
+	 * A write buffered by a {@link Batch}.
+	 */
+	private static final class PendingWrite {
+
+		/**
+		 * The type of file.
+		 */
+		private final int type;
+
+		/**
+		 * The file id.
+		 */
+		private final int file;
+
+		/**
+		 * The {@link Container} replacing the file, or {@code null} if the
+		 * file is not replaced.
+		 */
+		private Container container;
+
+		/**
+		 * The data of the member files put into the archive, or {@code null}
+		 * if no members are written.
+		 */
+		private Map<Integer, ByteBuffer> members;
+
+		/**
+		 * The encryption keys.
+		 */
+		private int[] keys;
+
+		/**
+		 * Creates a new buffered write.
+		 * 
+		 * @param type
+		 *            The type of file.
+		 * @param file
+		 *            The file id.
+		 */
+		PendingWrite(int type, int file) {
+			this.type = type;
+			this.file = file;
+		}
 
-		/* and write the archive back to memory */
-		Container container = new Container(containerType, archive.encode(), containerVersion);
-		write(type, file, container, keys);
 	}
 }
@@ -22,6 +22,7 @@
 package net.openrs.cache;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
 import net.openrs.cache.util.CompressionUtils;
@@ -53,6 +54,12 @@ public final class Container {
 	 */
 	public static final int COMPRESSION_GZIP = 2;
 
+	/**
+	 * The largest uncompressed length a container may claim, so a corrupt or
+	 * malicious header cannot make decoding allocate an unbounded array.
+	 */
+	public static final int MAX_UNCOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
 	/**
 	 * Decodes and decompresses the container.
 	 * 
@@ -106,23 +113,35 @@ public final class Container {
 			/* grab the length of the uncompressed data */
 			int uncompressedLength = buffer.getInt();
 
-			/* grab the data */
-			byte[] compressed = new byte[length];
-			buffer.get(compressed);
+			if (uncompressedLength < 0 || uncompressedLength > MAX_UNCOMPRESSED_LENGTH)
+				throw new IOException("Invalid uncompressed length");
+			if (type == COMPRESSION_GZIP && uncompressedLength > (long) length * CompressionUtils.GZIP_MAX_EXPANSION)
+				throw new IOException("Invalid uncompressed length");
+			if (type != COMPRESSION_BZIP2 && type != COMPRESSION_GZIP)
+				throw new IOException("Invalid compression type");
 
-			/* uncompress it */
-			byte[] uncompressed;
-			if (type == COMPRESSION_BZIP2) {
-				uncompressed = CompressionUtils.bunzip2(compressed);
-			} else if (type == COMPRESSION_GZIP) {
-				uncompressed = CompressionUtils.gunzip(compressed);
+			/* grab the data, without copying it if the buffer is backed by an array */
+			if (length < 0 || length > buffer.remaining())
+				throw new BufferUnderflowException();
+
+			byte[] compressed;
+			int offset;
+			if (buffer.hasArray()) {
+				compressed = buffer.array();
+				offset = buffer.arrayOffset() + buffer.position();
+				buffer.position(buffer.position() + length);
 			} else {
-				throw new IOException("Invalid compression type");
+				compressed = new byte[length];
+				offset = 0;
+				buffer.get(compressed);
 			}
 
-			/* check if the lengths are equal */
-			if (uncompressed.length != uncompressedLength) {
-				throw new IOException("Length mismatch. [ " + uncompressed.length + ", " + uncompressedLength + " ]");
+			/* uncompress it straight into an array of the right size */
+			byte[] uncompressed = new byte[uncompressedLength];
+			if (type == COMPRESSION_BZIP2) {
+				CompressionUtils.bunzip2(compressed, offset, length, uncompressed);
+			} else {
+				CompressionUtils.gunzip(compressed, offset, length, uncompressed);
 			}
 
 			/* decode the version if present */
@@ -136,6 +155,71 @@ public final class Container {
 		}
 	}
 
+	/**
+	 * Reads the header and version trailer of an encoded container, without
+	 * decompressing its data. The position of the buffer is not changed.
+	 * 
+	 * @param buffer
+	 *            The buffer, positioned at the start of the container.
+	 * @return The header.
+	 * @throws IOException
+	 *             if the container is truncated.
+	 */
+	public static ContainerHeader peek(ByteBuffer buffer) throws IOException {
+		return peek(buffer, XTEAManager.NULL_KEYS);
+	}
+
+	/**
+	 * Reads the header and version trailer of an encoded container, without
+	 * decompressing its data. If the container is encrypted, only the first
+	 * block is deciphered to read the uncompressed length, and the buffer
+	 * itself is left untouched.
+	 * 
+	 * @param buffer
+	 *            The buffer, positioned at the start of the container.
+	 * @param keys
+	 *            The decryption keys.
+	 * @return The header.
+	 * @throws IOException
+	 *             if the container is truncated.
+	 */
+	public static ContainerHeader peek(ByteBuffer buffer, int[] keys) throws IOException {
+		int start = buffer.position();
+		int available = buffer.remaining();
+		if (available < 5)
+			throw new IOException("Truncated container");
+
+		/* decode the type and length */
+		int type = buffer.get(start) & 0xFF;
+		int length = buffer.getInt(start + 1);
+
+		int size = 5 + (type == COMPRESSION_NONE ? 0 : 4) + length;
+		if (length < 0 || available < size)
+			throw new IOException("Truncated container");
+
+		/* grab the length of the uncompressed data, deciphering it if necessary */
+		int uncompressedLength = length;
+		if (type != COMPRESSION_NONE) {
+			boolean encrypted = keys[0] != 0 || keys[1] != 0 || keys[2] != 0 || keys[3] != 0;
+			if (encrypted && size - 5 >= 8) {
+				ByteBuffer block = ByteBuffer.allocate(8);
+				block.putLong(0, buffer.getLong(start + 5));
+				Xtea.decipher(block, 0, 8, keys);
+				uncompressedLength = block.getInt(0);
+			} else {
+				uncompressedLength = buffer.getInt(start + 5);
+			}
+		}
+
+		/* decode the version if present */
+		int version = -1;
+		if (available - size >= 2) {
+			version = buffer.getShort(start + size) & 0xFFFF;
+		}
+
+		return new ContainerHeader(type, length, uncompressedLength, version);
+	}
+
 	/**
 	 * The type of compression this container uses.
 	 */
@@ -251,6 +335,15 @@ public final class Container {
 		return (ByteBuffer) buf.flip();
 	}
 
+	/**
+	 * Creates a copy of this container that shares its decompressed data.
+	 * 
+	 * @return The copy.
+	 */
+	Container duplicate() {
+		return new Container(type, data, version);
+	}
+
 	/**
 	 * Gets the decompressed data.
 	 * 
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+/**
+ * A {@link ContainerHeader} describes an encoded {@link Container} without
+ * decompressing its data.
+ * 
+ * @see Container#peek(java.nio.ByteBuffer)
+ */
+public final class ContainerHeader {
+
+	/**
+	 * The type of compression.
+	 */
+	private final int type;
+
+	/**
+	 * The length of the compressed data.
+	 */
+	private final int length;
+
+	/**
+	 * The length of the uncompressed data.
+	 */
+	private final int uncompressedLength;
+
+	/**
+	 * The version trailer, or {@code -1} if the container is not versioned.
+	 */
+	private final int version;
+
+	/**
+	 * Creates a new {@link ContainerHeader}.
+	 * 
+	 * @param type
+	 *            The type of compression.
+	 * @param length
+	 *            The length of the compressed data.
+	 * @param uncompressedLength
+	 *            The length of the uncompressed data.
+	 * @param version
+	 *            The version trailer, or {@code -1} if the container is not
+	 *            versioned.
+	 */
+	public ContainerHeader(int type, int length, int uncompressedLength, int version) {
+		this.type = type;
+		this.length = length;
+		this.uncompressedLength = uncompressedLength;
+		this.version = version;
+	}
+
+	/**
+	 * Gets the type of compression.
+	 * 
+	 * @return The compression type.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the length of the compressed data.
+	 * 
+	 * @return The compressed length.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the length of the uncompressed data. This is the same as the
+	 * compressed length if the container is not compressed.
+	 * 
+	 * @return The uncompressed length.
+	 */
+	public int getUncompressedLength() {
+		return uncompressedLength;
+	}
+
+	/**
+	 * Gets the size of the encoded container, excluding the version trailer.
+	 * This is the part of the container covered by the CRC in its reference
+	 * table entry.
+	 * 
+	 * @return The size in bytes.
+	 */
+	public int getSize() {
+		return 5 + (type == Container.COMPRESSION_NONE ? 0 : 4) + length;
+	}
+
+	/**
+	 * Gets the version trailer, which holds the low 16 bits of the version of
+	 * the file.
+	 * 
+	 * @return The version trailer, as an unsigned short.
+	 * @throws IllegalStateException
+	 *             if the container is not versioned.
+	 */
+	public int getVersion() {
+		if (!isVersioned())
+			throw new IllegalStateException();
+
+		return version;
+	}
+
+	/**
+	 * Checks if the container is versioned.
+	 * 
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isVersioned() {
+		return version != -1;
+	}
+
+}
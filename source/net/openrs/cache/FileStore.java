@@ -22,21 +22,37 @@
 package net.openrs.cache;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import net.openrs.cache.type.CacheIndex;
+import net.openrs.util.ByteBufferUtils;
 import net.openrs.util.FileChannelUtils;
 
 /**
  * A file store holds multiple files inside a "virtual" file system made up of
  * several index files and a single data file.
+ * <p />
+ * A file store may be shared between threads. Files can be read in parallel
+ * without locking, and different files can be written in parallel: updates to
+ * each index are guarded by striped locks and new sectors are allocated
+ * atomically.
  * 
  * @author Graham
  * @author `Discardedx2
@@ -148,6 +164,128 @@ public final class FileStore implements Closeable {
 		return open(new File(root));
 	}
 
+	/**
+	 * Opens the file store stored in the specified directory in read-only mode,
+	 * mapping the data file and all of the index files into memory. Reads from
+	 * a mapped file store are plain memory copies and may be shared freely
+	 * between threads, however any attempt to write will fail.
+	 * 
+	 * @param root
+	 *            The directory containing the index and data files.
+	 * @return The file store.
+	 * @throws FileNotFoundException
+	 *             if any of the {@code main_file_cache.*} files could not be
+	 *             found.
+	 * @throws IOException
+	 *             if the files could not be mapped.
+	 */
+	@SuppressWarnings("resource")
+	public static FileStore openMapped(File root) throws IOException {
+		File data = new File(root, "main_file_cache.dat2");
+		if (!data.exists())
+			throw new FileNotFoundException();
+		FileChannel dataChannel = new RandomAccessFile(data, "r").getChannel();
+
+		List<FileChannel> indexChannels = new ArrayList<FileChannel>();
+		for (int i = 0; i < 254; i++) {
+			File index = new File(root, "main_file_cache.idx" + i);
+			if (!index.exists())
+				break;
+
+			indexChannels.add(new RandomAccessFile(index, "r").getChannel());
+		}
+
+		if (indexChannels.isEmpty())
+			throw new FileNotFoundException();
+
+		File meta = new File(root, "main_file_cache.idx255");
+		if (!meta.exists())
+			throw new FileNotFoundException();
+		FileChannel metaChannel = new RandomAccessFile(meta, "r").getChannel();
+
+		return new FileStore(dataChannel, indexChannels.toArray(new FileChannel[0]), metaChannel, true);
+	}
+
+	/**
+	 * Opens the file store stored in the specified directory in read-only mode,
+	 * mapping the data file and all of the index files into memory.
+	 * 
+	 * @param root
+	 *            The directory containing the index and data files.
+	 * @return The file store.
+	 * @throws FileNotFoundException
+	 *             if any of the {@code main_file_cache.*} files could not be
+	 *             found.
+	 * @throws IOException
+	 *             if the files could not be mapped.
+	 */
+	public static FileStore openMapped(String root) throws IOException {
+		return openMapped(new File(root));
+	}
+
+	/**
+	 * The size of each mapped region of the data file. This is a whole number
+	 * of sectors, so a single sector never straddles two regions.
+	 */
+	private static final long MAPPED_REGION_SIZE = (long) Sector.SIZE * 0x200000L;
+
+	/**
+	 * The maximum number of consecutive sectors fetched by a single read when
+	 * a file is stored contiguously.
+	 */
+	private static final int MAX_READ_SECTORS = 128;
+
+	/**
+	 * A per-thread buffer that index entries and runs of sectors are read
+	 * into, so that reading a file does not allocate a buffer for every
+	 * sector.
+	 */
+	private static final ThreadLocal<ByteBuffer> SECTOR_BUFFER = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocate(MAX_READ_SECTORS * Sector.SIZE));
+
+	/**
+	 * The number of locks each index is striped across. This must be a power
+	 * of two.
+	 */
+	private static final int LOCK_STRIPES = 16;
+
+	/**
+	 * Maps the whole of the specified channel into memory.
+	 * 
+	 * @param channel
+	 *            The channel.
+	 * @return The mapped buffer.
+	 * @throws IOException
+	 *             if the channel is too large or could not be mapped.
+	 */
+	private static ByteBuffer map(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Index file too large to map.");
+
+		return channel.map(MapMode.READ_ONLY, 0, size);
+	}
+
+	/**
+	 * Maps the whole of the specified channel into memory, split into regions
+	 * of {@link #MAPPED_REGION_SIZE} bytes.
+	 * 
+	 * @param channel
+	 *            The channel.
+	 * @return The mapped regions.
+	 * @throws IOException
+	 *             if the channel could not be mapped.
+	 */
+	private static ByteBuffer[] mapRegions(FileChannel channel) throws IOException {
+		long size = channel.size();
+		ByteBuffer[] regions = new ByteBuffer[(int) ((size + MAPPED_REGION_SIZE - 1) / MAPPED_REGION_SIZE)];
+		for (int i = 0; i < regions.length; i++) {
+			long start = i * MAPPED_REGION_SIZE;
+			regions[i] = channel.map(MapMode.READ_ONLY, start, Math.min(MAPPED_REGION_SIZE, size - start));
+		}
+		return regions;
+	}
+
 	/**
 	 * The data file.
 	 */
@@ -163,6 +301,42 @@ public final class FileStore implements Closeable {
 	 */
 	private final FileChannel metaChannel;
 
+	/**
+	 * The mapped regions of the data file, or {@code null} if this file store
+	 * is not mapped.
+	 */
+	private final ByteBuffer[] dataRegions;
+
+	/**
+	 * The mapped index files, or {@code null} if this file store is not mapped.
+	 */
+	private final ByteBuffer[] indexBuffers;
+
+	/**
+	 * The mapped 'meta' index file, or {@code null} if this file store is not
+	 * mapped.
+	 */
+	private final ByteBuffer metaBuffer;
+
+	/**
+	 * The striped locks guarding the files of each index, with the locks of
+	 * the 'meta' index last. Writers hold a write lock for the whole update of
+	 * a file, while readers read optimistically and only fall back to taking
+	 * a read lock if a write raced with them.
+	 */
+	private final StampedLock[][] locks;
+
+	/**
+	 * The allocator that hands out sectors of the data file.
+	 */
+	private final SectorAllocator allocator = new SectorAllocator();
+
+	/**
+	 * The preloaded index tables, with the 'meta' index last, or {@code null}
+	 * if the indices have not been preloaded.
+	 */
+	private volatile IndexTable[] indexTables;
+
 	/**
 	 * Creates a new file store.
 	 * 
@@ -177,6 +351,770 @@ public final class FileStore implements Closeable {
 		this.dataChannel = data;
 		this.indexChannels = indexes;
 		this.metaChannel = meta;
+		this.dataRegions = null;
+		this.indexBuffers = null;
+		this.metaBuffer = null;
+		this.locks = createLocks(indexes.length + 1);
+	}
+
+	/**
+	 * Creates a new file store, optionally mapping all of the files into
+	 * memory.
+	 * 
+	 * @param data
+	 *            The data file.
+	 * @param indexes
+	 *            The index files.
+	 * @param meta
+	 *            The 'meta' index file.
+	 * @param mapped
+	 *            A flag indicating if the files should be mapped.
+	 * @throws IOException
+	 *             if the files could not be mapped.
+	 */
+	private FileStore(FileChannel data, FileChannel[] indexes, FileChannel meta, boolean mapped) throws IOException {
+		this.dataChannel = data;
+		this.indexChannels = indexes;
+		this.metaChannel = meta;
+
+		if (mapped) {
+			this.dataRegions = mapRegions(data);
+			this.indexBuffers = new ByteBuffer[indexes.length];
+			for (int i = 0; i < indexes.length; i++)
+				indexBuffers[i] = map(indexes[i]);
+			this.metaBuffer = map(meta);
+		} else {
+			this.dataRegions = null;
+			this.indexBuffers = null;
+			this.metaBuffer = null;
+		}
+		this.locks = createLocks(indexes.length + 1);
+	}
+
+	/**
+	 * Creates the striped locks for the specified number of indices.
+	 * 
+	 * @param indices
+	 *            The number of indices, including the 'meta' index.
+	 * @return The locks.
+	 */
+	private static StampedLock[][] createLocks(int indices) {
+		StampedLock[][] locks = new StampedLock[indices][LOCK_STRIPES];
+		for (StampedLock[] stripes : locks) {
+			for (int i = 0; i < stripes.length; i++)
+				stripes[i] = new StampedLock();
+		}
+		return locks;
+	}
+
+	/**
+	 * Gets the lock guarding the specified file.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The lock.
+	 * @throws FileNotFoundException
+	 *             if the type does not exist.
+	 */
+	private StampedLock getLock(int type, int id) throws FileNotFoundException {
+		if ((type < 0 || type >= indexChannels.length) && type != 255)
+			throw new FileNotFoundException();
+
+		return locks[type == 255 ? indexChannels.length : type][id & (LOCK_STRIPES - 1)];
+	}
+
+	/**
+	 * Performs a read of a file without taking its lock, then checks that no
+	 * write to the file happened at the same time. If one did, the read is
+	 * repeated while holding the lock. A read that fails part way through a
+	 * write, for example because it saw a half written index entry or sector
+	 * header, is repeated in the same way.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param read
+	 *            The read to perform.
+	 * @return The result of the read.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private <T> T readOptimistically(int type, int id, Read<T> read) throws IOException {
+		/* mapped file stores are never written to */
+		if (isMapped())
+			return read.read();
+
+		StampedLock lock = getLock(type, id);
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				T result = read.read();
+				if (lock.validate(stamp))
+					return result;
+			} catch (IOException | RuntimeException ex) {
+				if (lock.validate(stamp))
+					throw ex;
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return read.read();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * A read of a file that may be repeated.
+	 * 
+	 * @param <T>
+	 *            The type of the result.
+	 */
+	private interface Read<T> {
+
+		/**
+		 * Performs the read.
+		 * 
+		 * @return The result.
+		 * @throws IOException
+		 *             if an I/O error occurs.
+		 */
+		T read() throws IOException;
+
+	}
+
+	/**
+	 * Allocates a sector, reusing a free sector if they are being tracked or
+	 * growing the data file if not. Each sector is only ever handed out once,
+	 * even if several files are written concurrently.
+	 * 
+	 * @return The number of the sector.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private int allocateSector() throws IOException {
+		if (!allocator.isInitialised())
+			allocator.initialise(dataChannel.size());
+
+		return allocator.allocate();
+	}
+
+	/**
+	 * Loads every index file into memory, so looking up a file no longer
+	 * reads from the index files. The tables are kept up to date as files are
+	 * written.
+	 * <p />
+	 * This should be called once after opening the file store and before it
+	 * is shared between threads.
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void preloadIndices() throws IOException {
+		IndexTable[] tables = new IndexTable[indexChannels.length + 1];
+		for (int type = 0; type < tables.length; type++) {
+			FileChannel channel = type == indexChannels.length ? metaChannel : indexChannels[type];
+			ByteBuffer buf = ByteBuffer.allocate((int) (channel.size() / Index.SIZE * Index.SIZE));
+			FileChannelUtils.readFully(channel, buf, 0);
+			tables[type] = new IndexTable((ByteBuffer) buf.flip());
+		}
+		indexTables = tables;
+	}
+
+	/**
+	 * An {@link IndexTable} holds the entries of an index file in memory.
+	 * Entries are only updated while holding the table's monitor, while
+	 * readers rely on the striped locks to detect concurrent updates.
+	 */
+	private static final class IndexTable {
+
+		/**
+		 * The sizes of the files.
+		 */
+		private volatile int[] sizes;
+
+		/**
+		 * The first sectors of the files.
+		 */
+		private volatile int[] sectors;
+
+		/**
+		 * The number of entries in the index file.
+		 */
+		private volatile int count;
+
+		/**
+		 * Creates an index table from the contents of an index file.
+		 * 
+		 * @param buf
+		 *            The contents of the index file.
+		 */
+		IndexTable(ByteBuffer buf) {
+			int count = buf.remaining() / Index.SIZE;
+			int[] sizes = new int[count];
+			int[] sectors = new int[count];
+			for (int id = 0; id < count; id++) {
+				sizes[id] = ByteBufferUtils.getMedium(buf);
+				sectors[id] = ByteBufferUtils.getMedium(buf);
+			}
+
+			this.sizes = sizes;
+			this.sectors = sectors;
+			this.count = count;
+		}
+
+		/**
+		 * Replaces or inserts the entry of a file, growing the table if
+		 * necessary.
+		 * 
+		 * @param id
+		 *            The id of the file.
+		 * @param size
+		 *            The size of the file in bytes.
+		 * @param sector
+		 *            The first sector of the file.
+		 */
+		synchronized void put(int id, int size, int sector) {
+			if (id >= sizes.length) {
+				int capacity = Math.max(id + 1, sizes.length * 2);
+				int[] sectors = Arrays.copyOf(this.sectors, capacity);
+				int[] sizes = Arrays.copyOf(this.sizes, capacity);
+				this.sectors = sectors;
+				this.sizes = sizes;
+			}
+
+			sectors[id] = sector;
+			sizes[id] = size;
+			if (id >= count)
+				count = id + 1;
+		}
+
+	}
+
+	/**
+	 * Gets the preloaded index table of the specified type.
+	 * 
+	 * @param tables
+	 *            The preloaded index tables.
+	 * @param type
+	 *            The type.
+	 * @return The index table.
+	 */
+	private IndexTable getIndexTable(IndexTable[] tables, int type) {
+		return tables[type == 255 ? indexChannels.length : type];
+	}
+
+	/**
+	 * Writes the index entry of a file, keeping the preloaded index tables up
+	 * to date.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param index
+	 *            The index entry.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@SuppressWarnings("resource")
+	private void writeIndex(int type, int id, Index index) throws IOException {
+		FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
+		indexChannel.write(index.encode(), (long) id * (long) Index.SIZE);
+
+		IndexTable[] tables = indexTables;
+		if (tables != null)
+			getIndexTable(tables, type).put(id, index.getSize(), index.getSector());
+	}
+
+	/**
+	 * Starts tracking which sectors of the data file are free, by walking the
+	 * sector chain of every file in every index. From then on, sectors that
+	 * are orphaned when a file is rewritten or shrinks are reused by later
+	 * writes before the data file is grown.
+	 * <p />
+	 * This reads the headers of every sector in use, so it should be called
+	 * once after opening the file store and before it is shared between
+	 * threads.
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void trackFreeSectors() throws IOException {
+		if (isMapped())
+			throw new IOException("Mapped file stores are read-only.");
+
+		BitSet used = new BitSet();
+		for (int type = 0; type < indexChannels.length; type++)
+			markUsedSectors(type, used);
+		markUsedSectors(255, used);
+
+		allocator.track(dataChannel.size(), used);
+	}
+
+	/**
+	 * Gets the number of free sectors before the end of the data file.
+	 * 
+	 * @return The number of free sectors, or {@code 0} if free sectors are not
+	 *         being tracked.
+	 */
+	public int getFreeSectorCount() {
+		return allocator.getFreeSectors();
+	}
+
+	/**
+	 * Compacts the data file in place. Files stored in fragmented sector
+	 * chains or in sectors after the point the data file could end are moved
+	 * into free sectors nearer the start, and the data file is truncated once
+	 * every file has been looked at.
+	 * 
+	 * @param batchSize
+	 *            The maximum number of files looked at per batch.
+	 * @param listener
+	 *            The listener which is notified after each batch, or
+	 *            {@code null}.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public void compact(int batchSize, CompactionListener listener) throws IOException {
+		Compaction compaction = startCompaction();
+		boolean more;
+		do {
+			more = compaction.step(batchSize);
+			if (listener != null)
+				listener.progress(compaction.getProcessed(), compaction.getTotal(), compaction.getMoved());
+		} while (more);
+	}
+
+	/**
+	 * Starts an in-place compaction of the data file, which can then be
+	 * carried out in bounded batches with {@link Compaction#step(int)}. Free
+	 * sectors are tracked from this point on, if they were not already.
+	 * <p />
+	 * Every sector chain is walked before this returns, during which no file
+	 * can be written. The file store can be read from and written to as
+	 * normal between the steps of the compaction.
+	 * 
+	 * @return The compaction.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public Compaction startCompaction() throws IOException {
+		if (isMapped())
+			throw new IOException("Mapped file stores are read-only.");
+
+		return new Compaction();
+	}
+
+	/**
+	 * A listener which is notified of the progress of a {@link Compaction}.
+	 */
+	public interface CompactionListener {
+
+		/**
+		 * Called after each batch of a compaction.
+		 * 
+		 * @param processed
+		 *            The number of files looked at so far.
+		 * @param total
+		 *            The total number of files.
+		 * @param moved
+		 *            The number of files moved so far.
+		 */
+		void progress(int processed, int total, int moved);
+
+	}
+
+	/**
+	 * An in-place compaction of the data file of a {@link FileStore}.
+	 * <p />
+	 * Files are looked at in descending order of the last sector they use, so
+	 * the end of the data file is cleared first. Each file that needs moving
+	 * is copied into free sectors, its index entry is then pointed at the new
+	 * chain and finally its old sectors are freed.
+	 */
+	public final class Compaction {
+
+		/**
+		 * The types of the files.
+		 */
+		private final int[] types;
+
+		/**
+		 * The ids of the files.
+		 */
+		private final int[] ids;
+
+		/**
+		 * Flags indicating if each file needed moving when the compaction
+		 * started, either because it is fragmented or it might be after the
+		 * new end of the data file.
+		 */
+		private final boolean[] candidates;
+
+		/**
+		 * The indices of the files, in the order they should be looked at.
+		 */
+		private final int[] order;
+
+		/**
+		 * The number of files looked at so far.
+		 */
+		private int processed;
+
+		/**
+		 * The number of files moved so far.
+		 */
+		private int moved;
+
+		/**
+		 * Creates the compaction, walking the sector chain of every file.
+		 * 
+		 * @throws IOException
+		 *             if an I/O error occurs.
+		 */
+		private Compaction() throws IOException {
+			List<int[]> files = new ArrayList<int[]>();
+			BitSet used = new BitSet();
+			int end;
+
+			/*
+			 * no file can be written while the chains are walked, otherwise a
+			 * sector allocated part way through could be missed and handed
+			 * out again once free sectors are tracked
+			 */
+			long[][] stamps = lockAll();
+			try {
+				for (int type = 0; type <= indexChannels.length; type++) {
+					int indexType = type == indexChannels.length ? 255 : type;
+					int count = getFileCount(indexType);
+					for (int id = 0; id < count; id++) {
+						IntStream.Builder builder = IntStream.builder();
+						getSectors(indexType, id, builder);
+
+						int[] sectors = builder.build().toArray();
+						if (sectors.length == 0)
+							continue;
+
+						for (int sector : sectors)
+							used.set(sector);
+						files.add(new int[] { indexType, id, getLastSector(sectors), isContiguous(sectors) ? 1 : 0 });
+					}
+				}
+
+				/* every sector in use could fit before this point */
+				end = used.cardinality() + 1;
+
+				if (!allocator.isTracking())
+					allocator.track(dataChannel.size(), used);
+			} finally {
+				unlockAll(stamps);
+			}
+
+			int size = files.size();
+			this.types = new int[size];
+			this.ids = new int[size];
+			this.candidates = new boolean[size];
+			long[] keys = new long[size];
+			for (int i = 0; i < size; i++) {
+				int[] file = files.get(i);
+				types[i] = file[0];
+				ids[i] = file[1];
+				candidates[i] = file[2] >= end || file[3] == 0;
+				keys[i] = ((long) file[2] << 32) | i;
+			}
+
+			Arrays.sort(keys);
+			this.order = new int[size];
+			for (int i = 0; i < size; i++)
+				order[i] = (int) keys[size - 1 - i];
+		}
+
+		/**
+		 * Looks at the next batch of files, moving those that need it. Once
+		 * every file has been looked at, the data file is truncated.
+		 * 
+		 * @param batchSize
+		 *            The maximum number of files to look at.
+		 * @return {@code true} if there are more files to look at,
+		 *         {@code false} if the compaction is complete.
+		 * @throws IOException
+		 *             if an I/O error occurs.
+		 */
+		public boolean step(int batchSize) throws IOException {
+			if (processed == order.length)
+				return false;
+
+			int last = Math.min(processed + batchSize, order.length);
+			for (; processed < last; processed++) {
+				int file = order[processed];
+				if (candidates[file] && relocate(types[file], ids[file]))
+					moved++;
+			}
+
+			if (processed == order.length) {
+				truncate();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Gets the number of files looked at so far.
+		 * 
+		 * @return The number of files.
+		 */
+		public int getProcessed() {
+			return processed;
+		}
+
+		/**
+		 * Gets the number of files moved so far.
+		 * 
+		 * @return The number of files.
+		 */
+		public int getMoved() {
+			return moved;
+		}
+
+		/**
+		 * Gets the total number of files.
+		 * 
+		 * @return The number of files.
+		 */
+		public int getTotal() {
+			return order.length;
+		}
+
+	}
+
+	/**
+	 * Moves a file into free sectors if it is fragmented or stored after the
+	 * point the data file could end. If possible the whole file is moved into
+	 * a run of consecutive sectors, otherwise only the sectors past that point
+	 * are moved into the lowest free sectors.
+	 * <p />
+	 * Moved sectors are written first, then the sectors pointing at them and
+	 * finally the index entry, so the file can be read at every step.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return {@code true} if the file was moved, {@code false} if not.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private boolean relocate(int type, int id) throws IOException {
+		StampedLock lock = getLock(type, id);
+		long stamp = lock.writeLock();
+		try {
+			/* the file may have been rewritten since the compaction started */
+			IntStream.Builder builder = IntStream.builder();
+			getSectors(type, id, builder);
+			int[] oldSectors = builder.build().toArray();
+
+			long index = readIndex(type, id);
+			int size = getIndexSize(index);
+			int dataSize = id > 0xFFFF ? Sector.EXTENDED_DATA_SIZE : Sector.DATA_SIZE;
+			if (oldSectors.length == 0 || oldSectors.length != (size + dataSize - 1) / dataSize)
+				return false;
+
+			/* every sector in use could fit before this point */
+			int end = allocator.getUsedSectors() + 1;
+			int last = getLastSector(oldSectors);
+			boolean trailing = last >= end;
+			if (!trailing && isContiguous(oldSectors))
+				return false;
+
+			int[] sectors = oldSectors.clone();
+			int[] run = allocator.allocateRun(oldSectors.length, trailing ? end : last);
+			if (run != null) {
+				sectors = run;
+			} else if (trailing) {
+				int count = 0;
+				for (int sector : oldSectors) {
+					if (sector >= end)
+						count++;
+				}
+
+				int[] free = allocator.allocateLowest(count, end);
+				if (free == null)
+					return false;
+
+				for (int chunk = 0, next = 0; chunk < sectors.length; chunk++) {
+					if (sectors[chunk] >= end)
+						sectors[chunk] = free[next++];
+				}
+			} else {
+				return false;
+			}
+
+			try {
+				ByteBuffer data = ByteBuffer.allocate(size);
+				readSectors(type, id, getIndexSector(index), size, data, null);
+
+				/* write the moved sectors, then the sectors now pointing to them */
+				for (int pass = 0; pass < 2; pass++) {
+					for (int chunk = 0; chunk < sectors.length; chunk++) {
+						boolean moved = sectors[chunk] != oldSectors[chunk];
+						boolean relinked = chunk + 1 < sectors.length && sectors[chunk + 1] != oldSectors[chunk + 1];
+						if (pass == 0 ? !moved : moved || !relinked)
+							continue;
+
+						byte[] bytes = new byte[dataSize];
+						data.position(chunk * dataSize);
+						data.get(bytes, 0, Math.min(dataSize, size - chunk * dataSize));
+
+						int nextSector = chunk + 1 < sectors.length ? sectors[chunk + 1] : 0;
+						Sector sector = new Sector(type, id, chunk, nextSector, bytes);
+						dataChannel.write(sector.encode(), (long) sectors[chunk] * (long) Sector.SIZE);
+					}
+				}
+
+				if (sectors[0] != oldSectors[0])
+					writeIndex(type, id, new Index(size, sectors[0]));
+			} catch (IOException ex) {
+				for (int chunk = 0; chunk < sectors.length; chunk++) {
+					if (sectors[chunk] != oldSectors[chunk])
+						allocator.release(sectors[chunk]);
+				}
+				throw ex;
+			}
+
+			for (int chunk = 0; chunk < sectors.length; chunk++) {
+				if (sectors[chunk] != oldSectors[chunk])
+					allocator.release(oldSectors[chunk]);
+			}
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Truncates the data file just after the last sector in use. Every lock
+	 * is held while doing so, so no file can be written past the new end
+	 * before the data file has been truncated.
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void truncate() throws IOException {
+		long[][] stamps = lockAll();
+		try {
+			long size = (long) allocator.truncate() * (long) Sector.SIZE;
+			if (dataChannel.size() > size)
+				dataChannel.truncate(size);
+		} finally {
+			unlockAll(stamps);
+		}
+	}
+
+	/**
+	 * Takes the write lock of every file, so no file can be written until
+	 * {@link #unlockAll(long[][])} is called.
+	 * 
+	 * @return The stamps of the locks.
+	 */
+	private long[][] lockAll() {
+		long[][] stamps = new long[locks.length][LOCK_STRIPES];
+		for (int type = 0; type < locks.length; type++) {
+			for (int stripe = 0; stripe < LOCK_STRIPES; stripe++)
+				stamps[type][stripe] = locks[type][stripe].writeLock();
+		}
+		return stamps;
+	}
+
+	/**
+	 * Releases the write locks taken by {@link #lockAll()}.
+	 * 
+	 * @param stamps
+	 *            The stamps of the locks.
+	 */
+	private void unlockAll(long[][] stamps) {
+		for (int type = 0; type < locks.length; type++) {
+			for (int stripe = 0; stripe < LOCK_STRIPES; stripe++)
+				locks[type][stripe].unlockWrite(stamps[type][stripe]);
+		}
+	}
+
+	/**
+	 * Gets the last sector in a chain.
+	 * 
+	 * @param sectors
+	 *            The sectors in the chain.
+	 * @return The highest numbered sector.
+	 */
+	private static int getLastSector(int[] sectors) {
+		int last = 0;
+		for (int sector : sectors)
+			last = Math.max(last, sector);
+		return last;
+	}
+
+	/**
+	 * Checks if a chain is stored in consecutive sectors.
+	 * 
+	 * @param sectors
+	 *            The sectors in the chain.
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	private static boolean isContiguous(int[] sectors) {
+		for (int i = 1; i < sectors.length; i++) {
+			if (sectors[i] != sectors[i - 1] + 1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the sectors used by every file of the specified type.
+	 * 
+	 * @param type
+	 *            The type.
+	 * @param used
+	 *            The set of sectors in use.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void markUsedSectors(int type, BitSet used) throws IOException {
+		int files = getFileCount(type);
+		for (int id = 0; id < files; id++)
+			getSectors(type, id, used::set);
+	}
+
+	/**
+	 * Walks the sector chain of a file, stopping early if the chain is
+	 * corrupt.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param visitor
+	 *            The visitor, which is passed the number of each valid sector
+	 *            in the chain.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void getSectors(int type, int id, IntConsumer visitor) throws IOException {
+		long index;
+		try {
+			index = readIndex(type, id);
+		} catch (FileNotFoundException ex) {
+			return;
+		}
+
+		try {
+			readSectors(type, id, getIndexSector(index), getIndexSize(index), null, visitor);
+		} catch (IOException ex) {
+			/* the rest of a corrupt chain doesn't belong to this file */
+		}
 	}
 
 	public void close() throws IOException {
@@ -192,6 +1130,16 @@ public final class FileStore implements Closeable {
 		return dataChannel.size() > 0;
 	}
 
+	/**
+	 * Checks if this file store is mapped into memory, in which case it is
+	 * read-only.
+	 * 
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	public boolean isMapped() {
+		return dataRegions != null;
+	}
+
 	/**
 	 * Gets the number of files of the specified type.
 	 * 
@@ -205,6 +1153,10 @@ public final class FileStore implements Closeable {
 		if ((type < 0 || type >= indexChannels.length) && type != 255)
 			throw new FileNotFoundException();
 
+		IndexTable[] tables = indexTables;
+		if (tables != null)
+			return getIndexTable(tables, type).count;
+
 		if (type == 255)
 			return (int) (metaChannel.size() / Index.SIZE);
 		return (int) (indexChannels[type].size() / Index.SIZE);
@@ -247,55 +1199,331 @@ public final class FileStore implements Closeable {
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
-	@SuppressWarnings("resource")
 	public ByteBuffer read(int type, int id) throws IOException {
+		return readOptimistically(type, id, () -> {
+			long index = readIndex(type, id);
+
+			ByteBuffer data = ByteBuffer.allocate(getIndexSize(index));
+			readSectors(type, id, getIndexSector(index), data.remaining(), data, null);
+			return (ByteBuffer) data.flip();
+		});
+	}
+
+	/**
+	 * Reads a file into the specified buffer, starting at its current
+	 * position. The position of the buffer is advanced by the size of the
+	 * file.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param buffer
+	 *            The buffer to read the contents of the file into.
+	 * @return The size of the file in bytes.
+	 * @throws BufferOverflowException
+	 *             if the file does not fit in the remaining space of the
+	 *             buffer.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public int read(int type, int id, ByteBuffer buffer) throws IOException {
+		int position = buffer.position();
+		return readOptimistically(type, id, () -> {
+			buffer.position(position);
+			long index = readIndex(type, id);
+
+			int size = getIndexSize(index);
+			if (buffer.remaining() < size)
+				throw new BufferOverflowException();
+
+			readSectors(type, id, getIndexSector(index), size, buffer, null);
+			return size;
+		});
+	}
+
+	/**
+	 * Reads several files of the same type. The index entries of all files are
+	 * resolved first, and the files are then read in the order they are stored
+	 * in the data file, so that reading many files mostly requires sequential
+	 * rather than random access.
+	 * 
+	 * @param type
+	 *            The type of the files.
+	 * @param ids
+	 *            The ids of the files.
+	 * @return A map of file ids to {@link ByteBuffer}s containing the contents
+	 *         of the files. Files that do not exist or are empty are omitted.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public Map<Integer, ByteBuffer> readAll(int type, int[] ids) throws IOException {
 		if ((type < 0 || type >= indexChannels.length) && type != 255)
 			throw new FileNotFoundException();
 
-		FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
+		/*
+		 * resolve the index entry of each file, remembering a stamp of its lock
+		 * taken beforehand so a write made before the file is read can be
+		 * detected, and pack the first sector and request number of each file
+		 * so they sort by offset
+		 */
+		long[] indices = new long[ids.length];
+		long[] stamps = new long[ids.length];
+		long[] requests = new long[ids.length];
+		int count = 0;
+		for (int i = 0; i < ids.length; i++) {
+			int id = ids[i];
+			stamps[i] = getLock(type, id).tryOptimisticRead();
+			try {
+				indices[i] = readOptimistically(type, id, () -> readIndex(type, id));
+			} catch (FileNotFoundException ex) {
+				/* ignore files that do not exist */
+				continue;
+			}
 
-		long ptr = (long) id * (long) Index.SIZE;
-		if (ptr < 0 || ptr >= indexChannel.size()) {
+			/* empty files have no sectors to read */
+			if (getIndexSize(indices[i]) != 0)
+				requests[count++] = ((long) getIndexSector(indices[i]) << 32) | i;
+		}
+		Arrays.sort(requests, 0, count);
+
+		Map<Integer, ByteBuffer> files = new HashMap<>(count * 4 / 3 + 1);
+		for (int request = 0; request < count; request++) {
+			int i = (int) requests[request];
+			int id = ids[i];
+			StampedLock lock = getLock(type, id);
+
+			ByteBuffer data = null;
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(getIndexSize(indices[i]));
+				readSectors(type, id, getIndexSector(indices[i]), buffer.remaining(), buffer, null);
+				if (isMapped() || lock.validate(stamps[i]))
+					data = (ByteBuffer) buffer.flip();
+			} catch (IOException | RuntimeException ex) {
+				if (isMapped() || lock.validate(stamps[i]))
+					throw ex;
+			}
+
+			/* the file was written after its index entry was read, so read it again */
+			if (data == null) {
+				try {
+					data = read(type, id);
+				} catch (FileNotFoundException ex) {
+					/* ignore files that do not exist */
+					continue;
+				}
+
+				if (!data.hasRemaining())
+					continue;
+			}
+
+			files.put(id, data);
+		}
+		return files;
+	}
+
+	/**
+	 * Gets the size of a file.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The size of the file in bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public int getFileSize(int type, int id) throws IOException {
+		return readOptimistically(type, id, () -> getIndexSize(readIndex(type, id)));
+	}
+
+	/**
+	 * Reads the index entry of a file. The entry is packed into a single
+	 * {@code long} so that no {@link Index} object needs to be allocated, and
+	 * can be unpacked with {@link #getIndexSize(long)} and
+	 * {@link #getIndexSector(long)}.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @return The packed index entry.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	@SuppressWarnings("resource")
+	private long readIndex(int type, int id) throws IOException {
+		if ((type < 0 || type >= indexChannels.length) && type != 255)
 			throw new FileNotFoundException();
+
+		long ptr = (long) id * (long) Index.SIZE;
+
+		IndexTable[] tables = indexTables;
+		if (tables != null) {
+			IndexTable table = getIndexTable(tables, type);
+			if (id < 0 || id >= table.count)
+				throw new FileNotFoundException();
+
+			return ((long) table.sizes[id] << 32) | table.sectors[id];
 		}
 
-		ByteBuffer buf = ByteBuffer.allocate(Index.SIZE);
-		FileChannelUtils.readFully(indexChannel, buf, ptr);
+		ByteBuffer buf;
+		int base;
+		if (isMapped()) {
+			buf = type == 255 ? metaBuffer : indexBuffers[type];
+			if (ptr < 0 || ptr >= buf.limit())
+				throw new FileNotFoundException();
+			else if (ptr + Index.SIZE > buf.limit())
+				throw new EOFException();
 
-		Index index = Index.decode((ByteBuffer) buf.flip());
+			base = (int) ptr;
+		} else {
+			FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
+			if (ptr < 0 || ptr >= indexChannel.size())
+				throw new FileNotFoundException();
 
-		ByteBuffer data = ByteBuffer.allocate(index.getSize());
-		buf = ByteBuffer.allocate(Sector.SIZE);
+			buf = SECTOR_BUFFER.get();
+			buf.clear().limit(Index.SIZE);
+			FileChannelUtils.readFully(indexChannel, buf, ptr);
+			base = 0;
+		}
 
-		int chunk = 0, remaining = index.getSize();
-		ptr = (long) index.getSector() * (long) Sector.SIZE;
-		do {
-			buf.clear();
-			FileChannelUtils.readFully(dataChannel, buf, ptr);
-			boolean extended = id > 0xFFFF;
-			Sector sector = extended ? Sector.decodeExtended((ByteBuffer) buf.flip())
-					: Sector.decode((ByteBuffer) buf.flip());
-			int dataSize = extended ? Sector.EXTENDED_DATA_SIZE : Sector.DATA_SIZE;
-			if (remaining > dataSize) {
-				data.put(sector.getData(), 0, dataSize);
-				remaining -= dataSize;
+		int size = ByteBufferUtils.getMedium(buf, base);
+		int sector = ByteBufferUtils.getMedium(buf, base + 3);
+		return ((long) size << 32) | sector;
+	}
 
-				if (sector.getType() != type)
-					throw new IOException("File type mismatch.");
+	/**
+	 * Gets the size of the file from a packed index entry.
+	 * 
+	 * @param index
+	 *            The packed index entry.
+	 * @return The size of the file in bytes.
+	 */
+	private static int getIndexSize(long index) {
+		return (int) (index >>> 32);
+	}
 
-				if (sector.getId() != id)
-					throw new IOException("File id mismatch.");
+	/**
+	 * Gets the first sector of the file from a packed index entry.
+	 * 
+	 * @param index
+	 *            The packed index entry.
+	 * @return The number of the first sector that contains the file.
+	 */
+	private static int getIndexSector(long index) {
+		return (int) index;
+	}
+
+	/**
+	 * Walks the chain of sectors that make up a file, parsing each sector
+	 * header in place and copying the data straight into the destination
+	 * buffer.
+	 * <p />
+	 * When reading from the channels, runs of consecutive sectors are fetched
+	 * with a single read. If the chain turns out to be fragmented, sectors are
+	 * read one at a time until it becomes contiguous again.
+	 * 
+	 * @param type
+	 *            The type of the file.
+	 * @param id
+	 *            The id of the file.
+	 * @param sector
+	 *            The number of the first sector that contains the file.
+	 * @param size
+	 *            The size of the file in bytes.
+	 * @param dest
+	 *            The buffer to copy the contents of the file into, or
+	 *            {@code null} if the contents are not needed.
+	 * @param visitor
+	 *            The visitor which is passed the number of each sector once its
+	 *            header has been validated, or {@code null}.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private void readSectors(int type, int id, int sector, int size, ByteBuffer dest, IntConsumer visitor)
+			throws IOException {
+		boolean extended = id > 0xFFFF;
+		int headerSize = extended ? Sector.EXTENDED_HEADER_SIZE : Sector.HEADER_SIZE;
+		int dataSize = extended ? Sector.EXTENDED_DATA_SIZE : Sector.DATA_SIZE;
+
+		ByteBuffer buf = null;
+		int regionIndex = -1;
+
+		long runStart = 0;
+		int runLength = 0;
+		boolean contiguous = true;
+
+		int chunk = 0, remaining = size;
+		long ptr = (long) sector * (long) Sector.SIZE;
+		while (remaining > 0) {
+			int length = Math.min(remaining, dataSize);
 
-				if (sector.getChunk() != chunk++)
-					throw new IOException("Chunk mismatch.");
+			int base;
+			if (isMapped()) {
+				/* duplicate the region so concurrent readers don't share a position */
+				if (ptr / MAPPED_REGION_SIZE != regionIndex) {
+					regionIndex = (int) (ptr / MAPPED_REGION_SIZE);
+					if (regionIndex >= dataRegions.length)
+						throw new EOFException();
+					buf = dataRegions[regionIndex].duplicate();
+				}
 
-				ptr = (long) sector.getNextSector() * (long) Sector.SIZE;
+				base = (int) (ptr % MAPPED_REGION_SIZE);
+				if (base + headerSize + length > buf.capacity())
+					throw new EOFException();
 			} else {
-				data.put(sector.getData(), 0, remaining);
-				remaining = 0;
+				buf = SECTOR_BUFFER.get();
+
+				long offset = ptr - runStart;
+				if (offset < 0 || offset + headerSize + length > runLength) {
+					/* fetch as many of the remaining sectors as we can, assuming they are consecutive */
+					int sectors = contiguous ? Math.min((remaining + dataSize - 1) / dataSize, MAX_READ_SECTORS) : 1;
+					int last = Math.min(remaining - (sectors - 1) * dataSize, dataSize);
+					buf.clear().limit((sectors - 1) * Sector.SIZE + headerSize + last);
+
+					runStart = ptr;
+					runLength = FileChannelUtils.readAvailable(dataChannel, buf, ptr);
+					if (runLength < headerSize + length)
+						throw new EOFException();
+
+					offset = 0;
+				}
+				base = (int) offset;
 			}
-		} while (remaining > 0);
-		return (ByteBuffer) data.flip();
+
+			/* parse the sector header in place */
+			int sectorId = extended ? buf.getInt(base) : buf.getShort(base) & 0xFFFF;
+			int offset = base + (extended ? 4 : 2);
+			int sectorChunk = buf.getShort(offset) & 0xFFFF;
+			int nextSector = ByteBufferUtils.getMedium(buf, offset + 2);
+			int sectorType = buf.get(offset + 5) & 0xFF;
+
+			if (sectorType != type)
+				throw new IOException("File type mismatch.");
+
+			if (sectorId != id)
+				throw new IOException("File id mismatch.");
+
+			if (sectorChunk != chunk++)
+				throw new IOException("Chunk mismatch.");
+
+			if (visitor != null)
+				visitor.accept((int) (ptr / Sector.SIZE));
+
+			/* and copy the data straight into the destination */
+			if (dest != null) {
+				buf.limit(base + headerSize + length).position(base + headerSize);
+				dest.put(buf);
+				buf.limit(buf.capacity());
+			}
+
+			remaining -= length;
+			if (remaining > 0) {
+				contiguous = nextSector == ptr / Sector.SIZE + 1;
+				ptr = (long) nextSector * (long) Sector.SIZE;
+			}
+		}
 	}
 
 	/**
@@ -311,10 +1539,37 @@ public final class FileStore implements Closeable {
 	 *             if an I/O error occurs.
 	 */
 	public void write(int type, int id, ByteBuffer data) throws IOException {
-		data.mark();
-		if (!write(type, id, data, true)) {
-			data.reset();
-			write(type, id, data, false);
+		if (isMapped())
+			throw new IOException("Mapped file stores are read-only.");
+
+		StampedLock lock = getLock(type, id);
+		long stamp = lock.writeLock();
+		try {
+			if (!allocator.isTracking()) {
+				data.mark();
+				if (!write(type, id, data, true, null)) {
+					data.reset();
+					write(type, id, data, false, null);
+				}
+				return;
+			}
+
+			/* remember the old sectors, so we can free any that weren't reused */
+			IntStream.Builder oldSectors = IntStream.builder();
+			getSectors(type, id, oldSectors);
+
+			IntStream.Builder newSectors = IntStream.builder();
+			data.mark();
+			if (!write(type, id, data, true, newSectors)) {
+				data.reset();
+				newSectors = IntStream.builder();
+				write(type, id, data, false, newSectors);
+			}
+
+			int[] used = newSectors.build().sorted().toArray();
+			oldSectors.build().filter(sector -> Arrays.binarySearch(used, sector) < 0).forEach(allocator::release);
+		} finally {
+			lock.unlockWrite(stamp);
 		}
 	}
 
@@ -329,41 +1584,40 @@ public final class FileStore implements Closeable {
 	 *            A {@link ByteBuffer} containing the contents of the file.
 	 * @param overwrite
 	 *            A flag indicating if the existing file should be overwritten.
+	 * @param sectors
+	 *            The visitor which is passed the number of each sector written
+	 *            to, or {@code null}.
 	 * @return A flag indicating if the file was written successfully.
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
 	@SuppressWarnings("resource")
-	private boolean write(int type, int id, ByteBuffer data, boolean overwrite) throws IOException {
+	private boolean write(int type, int id, ByteBuffer data, boolean overwrite, IntConsumer sectors)
+			throws IOException {
 		if ((type < 0 || type >= indexChannels.length) && type != 255)
 			throw new FileNotFoundException();
 
-		FileChannel indexChannel = type == 255 ? metaChannel : indexChannels[type];
-
 		int nextSector = 0;
-		long ptr = (long) id * (long) Index.SIZE;
+		long ptr;
 		if (overwrite) {
-			if (ptr < 0)
+			if (id < 0)
 				throw new IOException();
-			else if (ptr >= indexChannel.size())
-				return false;
 
-			ByteBuffer buf = ByteBuffer.allocate(Index.SIZE);
-			FileChannelUtils.readFully(indexChannel, buf, ptr);
+			try {
+				nextSector = getIndexSector(readIndex(type, id));
+			} catch (FileNotFoundException ex) {
+				return false;
+			}
 
-			Index index = Index.decode((ByteBuffer) buf.flip());
-			nextSector = index.getSector();
 			if (nextSector <= 0 || nextSector > dataChannel.size() * (long) Sector.SIZE)
 				return false;
 		} else {
-			nextSector = (int) ((dataChannel.size() + Sector.SIZE - 1) / (long) Sector.SIZE);
-			if (nextSector == 0)
-				nextSector = 1;
+			nextSector = allocateSector();
 		}
 
 		boolean extended = id > 0xFFFF;
 		Index index = new Index(data.remaining(), nextSector);
-		indexChannel.write(index.encode(), ptr);
+		writeIndex(type, id, index);
 
 		ByteBuffer buf = ByteBuffer.allocate(Sector.SIZE);
 
@@ -394,27 +1648,27 @@ public final class FileStore implements Closeable {
 					return false;
 			}
 
-			if (nextSector == 0) {
-				overwrite = false;
-				nextSector = (int) ((dataChannel.size() + Sector.SIZE - 1) / (long) Sector.SIZE);
-				if (nextSector == 0)
-					nextSector++;
-				if (nextSector == curSector)
-					nextSector++;
-			}
 			int dataSize = extended ? Sector.EXTENDED_DATA_SIZE : Sector.DATA_SIZE;
 			byte[] bytes = new byte[dataSize];
-			if (remaining < dataSize) {
+			if (remaining <= dataSize) {
 				data.get(bytes, 0, remaining);
 				nextSector = 0; // mark as EOF
 				remaining = 0;
 			} else {
 				remaining -= dataSize;
 				data.get(bytes, 0, dataSize);
+
+				/* only allocate a new sector once we know there is more data */
+				if (nextSector == 0) {
+					overwrite = false;
+					nextSector = allocateSector();
+				}
 			}
 
 			Sector sector = new Sector(type, id, chunk++, nextSector, bytes);
 			dataChannel.write(sector.encode(), ptr);
+			if (sectors != null)
+				sectors.accept(curSector);
 		} while (remaining > 0);
 
 		return true;
@@ -21,10 +21,11 @@
  */
 package net.openrs.cache;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -35,6 +36,12 @@ import net.openrs.util.ByteBufferUtils;
  * A {@link ReferenceTable} holds details for all the files with a single type,
  * such as checksums, versions and archive members. There are also optional
  * fields for identifier hashes and whirlpool digests.
+ * <p />
+ * The details are held in parallel arrays ordered by file id rather than in
+ * an object per file, and the ids of the members of every file share a single
+ * pool of arrays. The {@link Entry} and {@link ChildEntry} objects handed out
+ * by a table are views of these arrays, so changes made through them are
+ * reflected in the table.
  * 
  * @author Graham
  * @author `Discardedx2
@@ -51,26 +58,91 @@ public class ReferenceTable {
 	public static class ChildEntry {
 
 		/**
-		 * This entry's identifier.
+		 * This entry's identifier, if this entry is not part of a table.
 		 */
 		private int identifier = -1;
 
 		/**
-		 * The cache index of this entry
+		 * The cache index of this entry, if this entry is not part of a table.
+		 */
+		private int index;
+
+		/**
+		 * The table this entry is part of, or {@code null} if it is not part
+		 * of one.
+		 */
+		private ReferenceTable table;
+
+		/**
+		 * The id of the parent entry, if this entry is part of a table.
+		 */
+		private int parent;
+
+		/**
+		 * The id of this entry, if this entry is part of a table.
 		 */
-		private final int index;
+		private int id;
 
 		public ChildEntry(int index) {
 			this.index = index;
 		}
 
+		/**
+		 * Creates a view of a child entry within a table.
+		 * 
+		 * @param table
+		 *            The table.
+		 * @param parent
+		 *            The id of the parent entry.
+		 * @param id
+		 *            The id of this entry.
+		 */
+		private ChildEntry(ReferenceTable table, int parent, int id) {
+			attach(table, parent, id);
+		}
+
+		/**
+		 * Makes this entry a view of a child entry within a table.
+		 * 
+		 * @param table
+		 *            The table.
+		 * @param parent
+		 *            The id of the parent entry.
+		 * @param id
+		 *            The id of this entry.
+		 */
+		private void attach(ReferenceTable table, int parent, int id) {
+			this.table = table;
+			this.parent = parent;
+			this.id = id;
+		}
+
+		/**
+		 * Gets the position of this entry in the child pool of its table.
+		 * 
+		 * @return The position.
+		 * @throws IllegalStateException
+		 *             if this entry has been removed from its table.
+		 */
+		private int position() {
+			int slot = table.getSlot(parent);
+			int position = slot < 0 ? -1 : table.getChildPosition(slot, id);
+			if (position < 0)
+				throw new IllegalStateException("Entry has been removed");
+
+			return position;
+		}
+
 		/**
 		 * Gets the cache index for this child entry
 		 * 
 		 * @return The cache index
 		 */
 		public int index() {
-			return index;
+			if (table == null)
+				return index;
+
+			return position() - table.childOffsets[table.getSlot(parent)];
 		}
 
 		/**
@@ -79,7 +151,10 @@ public class ReferenceTable {
 		 * @return The identifier.
 		 */
 		public int getIdentifier() {
-			return identifier;
+			if (table == null)
+				return identifier;
+
+			return table.childIdentifiers[position()];
 		}
 
 		/**
@@ -89,7 +164,12 @@ public class ReferenceTable {
 		 *            The identifier.
 		 */
 		public void setIdentifier(int identifier) {
-			this.identifier = identifier;
+			if (table == null) {
+				this.identifier = identifier;
+			} else {
+				table.childIdentifiers[position()] = identifier;
+				table.structure++;
+			}
 		}
 
 	}
@@ -114,22 +194,23 @@ public class ReferenceTable {
 		/**
 		 * The compressed size of this entry.
 		 */
-		public int compressed;
+		private int compressed;
 
 		/**
 		 * The uncompressed size of this entry.
 		 */
-		public int uncompressed;
+		private int uncompressed;
 
 		/**
 		 * The hash of this entry
 		 */
-		public int hash;
+		private int hash;
 
 		/**
-		 * The whirlpool digest of this entry.
+		 * The whirlpool digest of this entry, or {@code null} if it has not
+		 * been set.
 		 */
-		private final byte[] whirlpool = new byte[64];
+		private byte[] whirlpool;
 
 		/**
 		 * The version of this entry.
@@ -139,29 +220,67 @@ public class ReferenceTable {
 		/**
 		 * The cache index of this entry
 		 */
-		private final int index;
-		
+		private int index;
+
 		/**
-		 * Child identifiers table
+		 * The children in this entry, or {@code null} if there are none.
 		 */
-		private Identifiers identifiers;
+		private SortedMap<Integer, ChildEntry> entries;
 
 		/**
-		 * The children in this entry.
+		 * The table this entry is part of, or {@code null} if it is not part
+		 * of one. While an entry is part of a table, the fields above are
+		 * unused and the table holds its details instead.
 		 */
-		private final SortedMap<Integer, ChildEntry> entries = new TreeMap<Integer, ChildEntry>();
+		private ReferenceTable table;
+
+		/**
+		 * The id of this entry, if this entry is part of a table.
+		 */
+		private int id;
 
 		public Entry(int index) {
 			this.index = index;
 		}
 
+		/**
+		 * Creates a view of an entry within a table.
+		 * 
+		 * @param table
+		 *            The table.
+		 * @param id
+		 *            The id of this entry.
+		 */
+		private Entry(ReferenceTable table, int id) {
+			this.table = table;
+			this.id = id;
+		}
+
+		/**
+		 * Gets the slot of this entry in its table.
+		 * 
+		 * @return The slot.
+		 * @throws IllegalStateException
+		 *             if this entry has been removed from its table.
+		 */
+		private int slot() {
+			int slot = table.getSlot(id);
+			if (slot < 0)
+				throw new IllegalStateException("Entry has been removed");
+
+			return slot;
+		}
+
 		/**
 		 * Gets the cache index for this entry
 		 * 
 		 * @return The cache index
 		 */
 		public int index() {
-			return index;
+			if (table == null)
+				return index;
+
+			return slot();
 		}
 
 		/**
@@ -170,10 +289,15 @@ public class ReferenceTable {
 		 * @return The maximum number of child entries.
 		 */
 		public int capacity() {
-			if (entries.isEmpty())
+			if (table == null)
+				return entries == null || entries.isEmpty() ? 0 : entries.lastKey() + 1;
+
+			int slot = slot();
+			int count = table.childCounts[slot];
+			if (count == 0)
 				return 0;
 
-			return entries.lastKey() + 1;
+			return table.childIds[table.childOffsets[slot] + count - 1] + 1;
 		}
 
 		/**
@@ -182,7 +306,10 @@ public class ReferenceTable {
 		 * @return The CRC32 checksum.
 		 */
 		public int getCrc() {
-			return crc;
+			if (table == null)
+				return crc;
+
+			return table.crcs[slot()];
 		}
 
 		/**
@@ -193,7 +320,13 @@ public class ReferenceTable {
 		 * @return The entry, or {@code null} if it does not exist.
 		 */
 		public ChildEntry getEntry(int id) {
-			return entries.get(id);
+			if (table == null)
+				return entries == null ? null : entries.get(id);
+
+			if (table.getChildPosition(slot(), id) < 0)
+				return null;
+
+			return new ChildEntry(table, this.id, id);
 		}
 
 		/**
@@ -202,7 +335,10 @@ public class ReferenceTable {
 		 * @return The identifier.
 		 */
 		public int getIdentifier() {
-			return identifier;
+			if (table == null)
+				return identifier;
+
+			return table.identifiers[slot()];
 		}
 
 		/**
@@ -211,7 +347,10 @@ public class ReferenceTable {
 		 * @return The version.
 		 */
 		public int getVersion() {
-			return version;
+			if (table == null)
+				return version;
+
+			return table.versions[slot()];
 		}
 
 		/**
@@ -220,7 +359,10 @@ public class ReferenceTable {
 		 * @return The uncompressed size.
 		 */
 		public int getUncompressed() {
-			return uncompressed;
+			if (table == null)
+				return uncompressed;
+
+			return table.uncompressedSizes[slot()];
 		}
 
 		/**
@@ -229,7 +371,10 @@ public class ReferenceTable {
 		 * @return The compressed size.
 		 */
 		public int getCompressed() {
-			return compressed;
+			if (table == null)
+				return compressed;
+
+			return table.compressedSizes[slot()];
 		}
 
 		/**
@@ -238,16 +383,26 @@ public class ReferenceTable {
 		 * @return The hash
 		 */
 		public int getHash() {
-			return hash;
+			if (table == null)
+				return hash;
+
+			return table.hashes[slot()];
 		}
 
 		/**
-		 * Gets the whirlpool digest of this entry.
+		 * Gets a copy of the whirlpool digest of this entry.
 		 * 
 		 * @return The whirlpool digest.
 		 */
 		public byte[] getWhirlpool() {
-			return whirlpool;
+			if (table == null)
+				return whirlpool == null ? new byte[64] : whirlpool.clone();
+
+			int slot = slot();
+			if (table.whirlpools == null)
+				return new byte[64];
+
+			return Arrays.copyOfRange(table.whirlpools, slot * 64, slot * 64 + 64);
 		}
 
 		/**
@@ -259,7 +414,15 @@ public class ReferenceTable {
 		 *            The entry.
 		 */
 		public void putEntry(int id, ChildEntry entry) {
-			entries.put(id, entry);
+			if (table == null) {
+				if (entries == null)
+					entries = new TreeMap<Integer, ChildEntry>();
+
+				entries.put(id, entry);
+			} else {
+				table.putChild(slot(), id, entry.getIdentifier());
+				entry.attach(table, this.id, id);
+			}
 		}
 
 		/**
@@ -269,7 +432,25 @@ public class ReferenceTable {
 		 *            The id.
 		 */
 		public void removeEntry(int id) {
-			entries.remove(id);
+			if (table == null) {
+				if (entries != null)
+					entries.remove(id);
+			} else {
+				table.removeChild(slot(), id);
+			}
+		}
+
+		/**
+		 * Sets the compressed size of this entry.
+		 * 
+		 * @param compressed
+		 *            The compressed size.
+		 */
+		public void setCompressed(int compressed) {
+			if (table == null)
+				this.compressed = compressed;
+			else
+				table.compressedSizes[slot()] = compressed;
 		}
 
 		/**
@@ -279,7 +460,23 @@ public class ReferenceTable {
 		 *            The CRC32 checksum.
 		 */
 		public void setCrc(int crc) {
-			this.crc = crc;
+			if (table == null)
+				this.crc = crc;
+			else
+				table.crcs[slot()] = crc;
+		}
+
+		/**
+		 * Sets the hash of this entry.
+		 * 
+		 * @param hash
+		 *            The hash.
+		 */
+		public void setHash(int hash) {
+			if (table == null)
+				this.hash = hash;
+			else
+				table.hashes[slot()] = hash;
 		}
 
 		/**
@@ -289,7 +486,25 @@ public class ReferenceTable {
 		 *            The identifier.
 		 */
 		public void setIdentifier(int identifier) {
-			this.identifier = identifier;
+			if (table == null) {
+				this.identifier = identifier;
+			} else {
+				table.identifiers[slot()] = identifier;
+				table.identifierTable = null;
+			}
+		}
+
+		/**
+		 * Sets the uncompressed size of this entry.
+		 * 
+		 * @param uncompressed
+		 *            The uncompressed size.
+		 */
+		public void setUncompressed(int uncompressed) {
+			if (table == null)
+				this.uncompressed = uncompressed;
+			else
+				table.uncompressedSizes[slot()] = uncompressed;
 		}
 
 		/**
@@ -299,7 +514,10 @@ public class ReferenceTable {
 		 *            The version.
 		 */
 		public void setVersion(int version) {
-			this.version = version;
+			if (table == null)
+				this.version = version;
+			else
+				table.versions[slot()] = version;
 		}
 
 		/**
@@ -314,7 +532,12 @@ public class ReferenceTable {
 			if (whirlpool.length != 64)
 				throw new IllegalArgumentException();
 
-			System.arraycopy(whirlpool, 0, this.whirlpool, 0, whirlpool.length);
+			if (table == null) {
+				this.whirlpool = whirlpool.clone();
+			} else {
+				int slot = slot();
+				System.arraycopy(whirlpool, 0, table.getWhirlpools(), slot * 64, 64);
+			}
 		}
 
 		/**
@@ -323,7 +546,10 @@ public class ReferenceTable {
 		 * @return The number of actual child entries.
 		 */
 		public int size() {
-			return entries.size();
+			if (table == null)
+				return entries == null ? 0 : entries.size();
+
+			return table.childCounts[slot()];
 		}
 
 	}
@@ -363,6 +589,7 @@ public class ReferenceTable {
 	public static ReferenceTable decode(ByteBuffer buffer) {
 		/* create a new table */
 		ReferenceTable table = new ReferenceTable();
+		int start = buffer.position();
 
 		/* read header */
 		table.format = buffer.get() & 0xFF;
@@ -372,115 +599,104 @@ public class ReferenceTable {
 		if (table.format >= 6) {
 			table.version = buffer.getInt();
 		}
-		
+
 		table.flags = buffer.get() & 0xFF;
 
-		/* read the ids */
-		int[] ids = new int[table.format >= 7 ? ByteBufferUtils.getSmartInt(buffer) : buffer.getShort() & 0xFFFF];
-		int accumulator = 0, size = -1;
-		for (int i = 0; i < ids.length; i++) {
+		/* read the ids straight into the table */
+		int count = table.format >= 7 ? ByteBufferUtils.getSmartInt(buffer) : buffer.getShort() & 0xFFFF;
+		table.allocate(count);
+		table.count = count;
+
+		int[] ids = table.ids;
+		int accumulator = 0;
+		for (int i = 0; i < count; i++) {
 			int delta = table.format >= 7 ? ByteBufferUtils.getSmartInt(buffer) : buffer.getShort() & 0xFFFF;
 			ids[i] = accumulator += delta;
-			if (ids[i] > size) {
-				size = ids[i];
-			}
-		}
-		size++;
-		// table.indices = ids;
-
-		/* and allocate specific entries within that array */
-		int index = 0;
-		for (int id : ids) {
-			table.entries.put(id, new Entry(index++));
 		}
 
 		/* read the identifiers if present */
-		int[] identifiersArray = new int[size];
+		table.identifierOffset = buffer.position() - start;
 		if ((table.flags & FLAG_IDENTIFIERS) != 0) {
-			for (int id : ids) {
-				int identifier = buffer.getInt();
-				identifiersArray[id] = identifier;
-				table.entries.get(id).identifier = identifier;
+			for (int i = 0; i < count; i++) {
+				table.identifiers[i] = buffer.getInt();
 			}
+		} else {
+			Arrays.fill(table.identifiers, 0, count, -1);
 		}
-		table.identifiers = new Identifiers(identifiersArray);
 
 		/* read the CRC32 checksums */
-		for (int id : ids) {
-			table.entries.get(id).crc = buffer.getInt();
+		table.crcOffset = buffer.position() - start;
+		for (int i = 0; i < count; i++) {
+			table.crcs[i] = buffer.getInt();
 		}
 
 		/* read another hash if present */
+		table.hashOffset = buffer.position() - start;
 		if ((table.flags & FLAG_HASH) != 0) {
-			for (int id : ids) {
-				table.entries.get(id).hash = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				table.hashes[i] = buffer.getInt();
 			}
 		}
 
-		/* read the whirlpool digests if present */
+		/* read the whirlpool digests if present, all in one go */
+		table.whirlpoolOffset = buffer.position() - start;
 		if ((table.flags & FLAG_WHIRLPOOL) != 0) {
-			for (int id : ids) {
-				buffer.get(table.entries.get(id).whirlpool);
-			}
+			buffer.get(table.getWhirlpools(), 0, count * 64);
 		}
 
 		/* read the sizes of the archive */
+		table.sizeOffset = buffer.position() - start;
 		if ((table.flags & FLAG_SIZES) != 0) {
-			for (int id : ids) {
-				table.entries.get(id).compressed = buffer.getInt();
-				table.entries.get(id).uncompressed = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				table.compressedSizes[i] = buffer.getInt();
+				table.uncompressedSizes[i] = buffer.getInt();
 			}
 		}
 
 		/* read the version numbers */
-		for (int id : ids) {
-			table.entries.get(id).version = buffer.getInt();
+		table.versionOffset = buffer.position() - start;
+		for (int i = 0; i < count; i++) {
+			table.versions[i] = buffer.getInt();
 		}
 
-		/* read the child sizes */
-		int[][] members = new int[size][];
-		for (int id : ids) {
-			members[id] = new int[table.format >= 7 ? ByteBufferUtils.getSmartInt(buffer) : buffer.getShort() & 0xFFFF];
+		/* read the child sizes, laying the children of each entry out one after another */
+		int children = 0;
+		for (int i = 0; i < count; i++) {
+			int size = table.format >= 7 ? ByteBufferUtils.getSmartInt(buffer) : buffer.getShort() & 0xFFFF;
+			table.childOffsets[i] = children;
+			table.childCounts[i] = size;
+			children += size;
 		}
 
 		/* read the child ids */
-		int[][] identifiers = new int[members.length][];
-		for (int id : ids) {
-			/* reset the accumulator and size */
+		table.childIds = new int[children];
+		table.childIdentifiers = new int[children];
+		table.childPoolSize = children;
+		for (int i = 0; i < count; i++) {
+			/* reset the accumulator */
 			accumulator = 0;
-			size = -1;
 
 			/* loop through the array of ids */
-			for (int i = 0; i < members[id].length; i++) {
+			int offset = table.childOffsets[i];
+			for (int j = 0; j < table.childCounts[i]; j++) {
 				int delta = table.format >= 7 ? ByteBufferUtils.getSmartInt(buffer) : buffer.getShort() & 0xFFFF;
-				members[id][i] = accumulator += delta;
-				if (members[id][i] > size) {
-					size = members[id][i];
-				}
-			}
-			size++;
-
-			identifiers[id] = new int[size];
-
-			/* and allocate specific entries within the array */
-			index = 0;
-			for (int child : members[id]) {
-				table.entries.get(id).entries.put(child, new ChildEntry(index++));
+				table.childIds[offset + j] = accumulator += delta;
 			}
 		}
 
 		/* read the child identifiers if present */
 		if ((table.flags & FLAG_IDENTIFIERS) != 0) {
-			for (int id : ids) {
-				for (int child : members[id]) {
-					int identifier = buffer.getInt();
-					identifiers[id][child] = identifier;
-					table.entries.get(id).entries.get(child).identifier = identifier;
-				}
-				table.entries.get(id).identifiers = new Identifiers(identifiers[id]);
+			for (int i = 0; i < children; i++) {
+				table.childIdentifiers[i] = buffer.getInt();
 			}
+		} else {
+			Arrays.fill(table.childIdentifiers, -1);
 		}
 
+		/* remember where the fixed size fields are, so they can be patched later */
+		table.layoutSize = buffer.position() - start;
+		table.layoutStructure = table.structure;
+
 		/* return the table we constructed */
 		return table;
 	}
@@ -501,7 +717,7 @@ public class ReferenceTable {
 		else
 			os.writeShort((short) val);
 	}
-	
+
 	/**
 	 * Puts a smart integer into the stream.
 	 * 
@@ -521,6 +737,11 @@ public class ReferenceTable {
 			os.writeInt(0x80000000 | value);
 	}
 
+	/**
+	 * An empty array, shared by empty tables.
+	 */
+	private static final int[] EMPTY = new int[0];
+
 	/**
 	 * The format of this table.
 	 */
@@ -537,133 +758,574 @@ public class ReferenceTable {
 	private int flags;
 
 	/**
-	 * The entries in this table.
+	 * The number of entries in this table.
+	 */
+	private int count;
+
+	/**
+	 * The ids of the entries in this table, in ascending order. The arrays
+	 * below hold the details of the entry in the same slot.
+	 */
+	private int[] ids = EMPTY;
+
+	/**
+	 * The identifiers of the entries.
+	 */
+	private int[] identifiers = EMPTY;
+
+	/**
+	 * The CRC32 checksums of the entries.
+	 */
+	private int[] crcs = EMPTY;
+
+	/**
+	 * The hashes of the entries.
+	 */
+	private int[] hashes = EMPTY;
+
+	/**
+	 * The compressed sizes of the entries.
+	 */
+	private int[] compressedSizes = EMPTY;
+
+	/**
+	 * The uncompressed sizes of the entries.
+	 */
+	private int[] uncompressedSizes = EMPTY;
+
+	/**
+	 * The versions of the entries.
+	 */
+	private int[] versions = EMPTY;
+
+	/**
+	 * The whirlpool digests of the entries, 64 bytes per slot, or
+	 * {@code null} if no digests have been set.
+	 */
+	private byte[] whirlpools;
+
+	/**
+	 * The position of the first child of each entry in the child pool.
+	 */
+	private int[] childOffsets = EMPTY;
+
+	/**
+	 * The number of children of each entry.
+	 */
+	private int[] childCounts = EMPTY;
+
+	/**
+	 * The ids of the children of all entries. The children of an entry are
+	 * held next to each other, in ascending order.
+	 */
+	private int[] childIds = EMPTY;
+
+	/**
+	 * The identifiers of the children of all entries.
+	 */
+	private int[] childIdentifiers = EMPTY;
+
+	/**
+	 * The number of positions in the child pool that have been used.
+	 */
+	private int childPoolSize;
+
+	/**
+	 * The number of used positions in the child pool that no longer hold a
+	 * child, because the children of an entry were moved or removed.
+	 */
+	private int childGarbage;
+
+	/**
+	 * The number of changes made to this table that move fields around in its
+	 * encoded form, such as adding or removing entries or children.
+	 */
+	private int structure;
+
+	/**
+	 * The value of {@link #structure} when this table was last decoded or
+	 * encoded, or {@code -1} if it has not been.
+	 */
+	private int layoutStructure = -1;
+
+	/**
+	 * The size of the table when it was last decoded or encoded.
+	 */
+	private int layoutSize;
+
+	/**
+	 * The offsets of the identifiers, CRC32 checksums, hashes, whirlpool
+	 * digests, sizes and versions when this table was last decoded or encoded.
+	 */
+	private int identifierOffset, crcOffset, hashOffset, whirlpoolOffset, sizeOffset, versionOffset;
+
+	/**
+	 * Identifier table, built when first requested.
+	 */
+	private volatile Identifiers identifierTable;
+
+	/**
+	 * Gets the slot of the entry with the specified id.
+	 * 
+	 * @param id
+	 *            The id.
+	 * @return The slot, or a negative value if there is no such entry.
+	 */
+	private int getSlot(int id) {
+		return Arrays.binarySearch(ids, 0, count, id);
+	}
+
+	/**
+	 * Gets the position of a child of an entry in the child pool.
+	 * 
+	 * @param slot
+	 *            The slot of the entry.
+	 * @param id
+	 *            The id of the child.
+	 * @return The position, or a negative value if there is no such child.
+	 */
+	private int getChildPosition(int slot, int id) {
+		int offset = childOffsets[slot];
+		int position = Arrays.binarySearch(childIds, offset, offset + childCounts[slot], id);
+		return position < 0 ? -1 : position;
+	}
+
+	/**
+	 * Makes sure there is room for the specified number of entries.
+	 * 
+	 * @param capacity
+	 *            The number of entries.
+	 */
+	private void allocate(int capacity) {
+		if (capacity <= ids.length)
+			return;
+
+		capacity = Math.max(capacity, ids.length + (ids.length >> 1));
+		ids = Arrays.copyOf(ids, capacity);
+		identifiers = Arrays.copyOf(identifiers, capacity);
+		crcs = Arrays.copyOf(crcs, capacity);
+		hashes = Arrays.copyOf(hashes, capacity);
+		compressedSizes = Arrays.copyOf(compressedSizes, capacity);
+		uncompressedSizes = Arrays.copyOf(uncompressedSizes, capacity);
+		versions = Arrays.copyOf(versions, capacity);
+		childOffsets = Arrays.copyOf(childOffsets, capacity);
+		childCounts = Arrays.copyOf(childCounts, capacity);
+		if (whirlpools != null)
+			whirlpools = Arrays.copyOf(whirlpools, capacity * 64);
+	}
+
+	/**
+	 * Gets the whirlpool digests of the entries, allocating them if they have
+	 * not been set before.
+	 * 
+	 * @return The whirlpool digests.
 	 */
-	private final SortedMap<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+	private byte[] getWhirlpools() {
+		if (whirlpools == null)
+			whirlpools = new byte[ids.length * 64];
+
+		return whirlpools;
+	}
 
 	/**
-	 * Identifier table
+	 * Inserts an empty entry.
+	 * 
+	 * @param slot
+	 *            The slot to insert the entry at.
+	 * @param id
+	 *            The id of the entry.
 	 */
-	private Identifiers identifiers;
-	
+	private void insertSlot(int slot, int id) {
+		allocate(count + 1);
+		structure++;
+
+		int moved = count - slot;
+		System.arraycopy(ids, slot, ids, slot + 1, moved);
+		System.arraycopy(identifiers, slot, identifiers, slot + 1, moved);
+		System.arraycopy(crcs, slot, crcs, slot + 1, moved);
+		System.arraycopy(hashes, slot, hashes, slot + 1, moved);
+		System.arraycopy(compressedSizes, slot, compressedSizes, slot + 1, moved);
+		System.arraycopy(uncompressedSizes, slot, uncompressedSizes, slot + 1, moved);
+		System.arraycopy(versions, slot, versions, slot + 1, moved);
+		System.arraycopy(childOffsets, slot, childOffsets, slot + 1, moved);
+		System.arraycopy(childCounts, slot, childCounts, slot + 1, moved);
+		if (whirlpools != null)
+			System.arraycopy(whirlpools, slot * 64, whirlpools, (slot + 1) * 64, moved * 64);
+		count++;
+
+		ids[slot] = id;
+		identifiers[slot] = -1;
+		crcs[slot] = hashes[slot] = compressedSizes[slot] = uncompressedSizes[slot] = versions[slot] = 0;
+		childOffsets[slot] = childPoolSize;
+		childCounts[slot] = 0;
+		if (whirlpools != null)
+			Arrays.fill(whirlpools, slot * 64, slot * 64 + 64, (byte) 0);
+	}
+
+	/**
+	 * Removes an entry.
+	 * 
+	 * @param slot
+	 *            The slot of the entry.
+	 */
+	private void removeSlot(int slot) {
+		childGarbage += childCounts[slot];
+		structure++;
+
+		int moved = count - slot - 1;
+		System.arraycopy(ids, slot + 1, ids, slot, moved);
+		System.arraycopy(identifiers, slot + 1, identifiers, slot, moved);
+		System.arraycopy(crcs, slot + 1, crcs, slot, moved);
+		System.arraycopy(hashes, slot + 1, hashes, slot, moved);
+		System.arraycopy(compressedSizes, slot + 1, compressedSizes, slot, moved);
+		System.arraycopy(uncompressedSizes, slot + 1, uncompressedSizes, slot, moved);
+		System.arraycopy(versions, slot + 1, versions, slot, moved);
+		System.arraycopy(childOffsets, slot + 1, childOffsets, slot, moved);
+		System.arraycopy(childCounts, slot + 1, childCounts, slot, moved);
+		if (whirlpools != null)
+			System.arraycopy(whirlpools, (slot + 1) * 64, whirlpools, slot * 64, moved * 64);
+		count--;
+	}
+
+	/**
+	 * Replaces or inserts a child of an entry. The children of the entry are
+	 * moved to the end of the child pool first if they are not already there,
+	 * so repeatedly adding children to one entry only moves them once.
+	 * 
+	 * @param slot
+	 *            The slot of the entry.
+	 * @param id
+	 *            The id of the child.
+	 * @param identifier
+	 *            The identifier of the child.
+	 */
+	private void putChild(int slot, int id, int identifier) {
+		structure++;
+		int position = getChildPosition(slot, id);
+		if (position >= 0) {
+			childIdentifiers[position] = identifier;
+			return;
+		}
+
+		/* reclaim the space left behind by moved and removed children once it adds up */
+		if (childGarbage > 1024 && childGarbage > childPoolSize / 2)
+			compactChildren();
+
+		int offset = childOffsets[slot];
+		int size = childCounts[slot];
+		if (offset + size != childPoolSize) {
+			/* move the children of the entry to the end of the pool */
+			ensureChildCapacity(childPoolSize + size + 1);
+			System.arraycopy(childIds, offset, childIds, childPoolSize, size);
+			System.arraycopy(childIdentifiers, offset, childIdentifiers, childPoolSize, size);
+			childGarbage += size;
+			offset = childOffsets[slot] = childPoolSize;
+			childPoolSize += size;
+		} else {
+			ensureChildCapacity(childPoolSize + 1);
+		}
+
+		/* shift the larger ids up to make room for the new child */
+		position = -(Arrays.binarySearch(childIds, offset, offset + size, id) + 1);
+		System.arraycopy(childIds, position, childIds, position + 1, offset + size - position);
+		System.arraycopy(childIdentifiers, position, childIdentifiers, position + 1, offset + size - position);
+		childIds[position] = id;
+		childIdentifiers[position] = identifier;
+		childCounts[slot]++;
+		childPoolSize++;
+	}
+
+	/**
+	 * Removes a child of an entry.
+	 * 
+	 * @param slot
+	 *            The slot of the entry.
+	 * @param id
+	 *            The id of the child.
+	 */
+	private void removeChild(int slot, int id) {
+		int position = getChildPosition(slot, id);
+		if (position < 0)
+			return;
+
+		structure++;
+		int end = childOffsets[slot] + childCounts[slot];
+		System.arraycopy(childIds, position + 1, childIds, position, end - position - 1);
+		System.arraycopy(childIdentifiers, position + 1, childIdentifiers, position, end - position - 1);
+		childCounts[slot]--;
+
+		if (end == childPoolSize)
+			childPoolSize--;
+		else
+			childGarbage++;
+	}
+
+	/**
+	 * Makes sure the child pool has room for the specified number of
+	 * positions.
+	 * 
+	 * @param capacity
+	 *            The number of positions.
+	 */
+	private void ensureChildCapacity(int capacity) {
+		if (capacity <= childIds.length)
+			return;
+
+		capacity = Math.max(capacity, childIds.length + (childIds.length >> 1));
+		childIds = Arrays.copyOf(childIds, capacity);
+		childIdentifiers = Arrays.copyOf(childIdentifiers, capacity);
+	}
+
+	/**
+	 * Lays the children of every entry out next to each other again,
+	 * discarding the unused positions in the child pool.
+	 */
+	private void compactChildren() {
+		int size = childPoolSize - childGarbage;
+		int[] ids = new int[size];
+		int[] identifiers = new int[size];
+
+		int position = 0;
+		for (int slot = 0; slot < count; slot++) {
+			System.arraycopy(childIds, childOffsets[slot], ids, position, childCounts[slot]);
+			System.arraycopy(childIdentifiers, childOffsets[slot], identifiers, position, childCounts[slot]);
+			childOffsets[slot] = position;
+			position += childCounts[slot];
+		}
+
+		childIds = ids;
+		childIdentifiers = identifiers;
+		childPoolSize = size;
+		childGarbage = 0;
+	}
+
 	/**
 	 * Gets the maximum number of entries in this table.
 	 * 
 	 * @return The maximum number of entries.
 	 */
 	public int capacity() {
-		if (entries.isEmpty())
+		if (count == 0)
 			return 0;
 
-		return entries.lastKey() + 1;
+		return ids[count - 1] + 1;
 	}
 
 	/**
-	 * Encodes this {@link ReferenceTable} into a {@link ByteBuffer}.
+	 * Encodes this {@link ReferenceTable} into a {@link ByteBuffer}. The size
+	 * of the table is calculated first, so it is written straight into a
+	 * buffer of exactly the right size.
 	 * 
 	 * @return The {@link ByteBuffer}.
 	 * @throws IOException
 	 *             if an I/O error occurs.
 	 */
 	public ByteBuffer encode() throws IOException {
-		/*
-		 * we can't (easily) predict the size ahead of time, so we write to a
-		 * stream and then to the buffer
-		 */
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		DataOutputStream os = new DataOutputStream(bout);
-		try {
-			/* write the header */
-			os.write(format);
-			if (format >= 6) {
-				os.writeInt(version);
-			}
-			os.write(flags);
-
-			/* calculate and write the number of non-null entries */
-			putSmartFormat(entries.size(), os);
-
-			/* write the ids */
-			int last = 0;
-			for (int id = 0; id < capacity(); id++) {
-				if (entries.containsKey(id)) {
-					int delta = id - last;
-					putSmartFormat(delta, os);
-					last = id;
-				}
-			}
+		ByteBuffer buf = ByteBuffer.allocate(getEncodedSize());
 
-			/* write the identifiers if required */
-			if ((flags & FLAG_IDENTIFIERS) != 0) {
-				for (Entry entry : entries.values()) {
-					os.writeInt(entry.identifier);
-				}
-			}
+		/* write the header */
+		buf.put((byte) format);
+		if (format >= 6) {
+			buf.putInt(version);
+		}
+		buf.put((byte) flags);
 
-			/* write the CRC checksums */
-			for (Entry entry : entries.values()) {
-				os.writeInt(entry.crc);
-			}
+		/* calculate and write the number of non-null entries */
+		putSmartFormat(buf, count);
 
-			/* write the hashes if required */
-			if ((flags & FLAG_HASH) != 0) {
-				for (Entry entry : entries.values()) {
-					os.writeInt(entry.hash);
-				}
-			}
+		/* write the ids */
+		int last = 0;
+		for (int i = 0; i < count; i++) {
+			putSmartFormat(buf, ids[i] - last);
+			last = ids[i];
+		}
 
-			/* write the whirlpool digests if required */
-			if ((flags & FLAG_WHIRLPOOL) != 0) {
-				for (Entry entry : entries.values()) {
-					os.write(entry.whirlpool);
-				}
+		/* write the identifiers if required */
+		identifierOffset = buf.position();
+		if ((flags & FLAG_IDENTIFIERS) != 0) {
+			for (int i = 0; i < count; i++) {
+				buf.putInt(identifiers[i]);
 			}
+		}
 
-			/* write the sizes if required */
-			if ((flags & FLAG_SIZES) != 0) {
-				for (Entry entry : entries.values()) {
-					os.writeInt(entry.compressed);
-					os.writeInt(entry.uncompressed);
-				}
+		/* write the CRC checksums */
+		crcOffset = buf.position();
+		for (int i = 0; i < count; i++) {
+			buf.putInt(crcs[i]);
+		}
+
+		/* write the hashes if required */
+		hashOffset = buf.position();
+		if ((flags & FLAG_HASH) != 0) {
+			for (int i = 0; i < count; i++) {
+				buf.putInt(hashes[i]);
 			}
+		}
+
+		/* write the whirlpool digests if required */
+		whirlpoolOffset = buf.position();
+		if ((flags & FLAG_WHIRLPOOL) != 0) {
+			buf.put(getWhirlpools(), 0, count * 64);
+		}
 
-			/* write the versions */
-			for (Entry entry : entries.values()) {
-				os.writeInt(entry.version);
+		/* write the sizes if required */
+		sizeOffset = buf.position();
+		if ((flags & FLAG_SIZES) != 0) {
+			for (int i = 0; i < count; i++) {
+				buf.putInt(compressedSizes[i]);
+				buf.putInt(uncompressedSizes[i]);
 			}
+		}
 
-			/* calculate and write the number of non-null child entries */
-			for (Entry entry : entries.values()) {
-				putSmartFormat(entry.entries.size(), os);
+		/* write the versions */
+		versionOffset = buf.position();
+		for (int i = 0; i < count; i++) {
+			buf.putInt(versions[i]);
+		}
+
+		/* calculate and write the number of non-null child entries */
+		for (int i = 0; i < count; i++) {
+			putSmartFormat(buf, childCounts[i]);
+		}
+
+		/* write the child ids */
+		for (int i = 0; i < count; i++) {
+			last = 0;
+			for (int j = childOffsets[i]; j < childOffsets[i] + childCounts[i]; j++) {
+				putSmartFormat(buf, childIds[j] - last);
+				last = childIds[j];
 			}
+		}
 
-			/* write the child ids */
-			for (Entry entry : entries.values()) {
-				last = 0;
-				for (int id = 0; id < entry.capacity(); id++) {
-					if (entry.entries.containsKey(id)) {
-						int delta = id - last;
-						putSmartFormat(delta, os);
-						last = id;
-					}
+		/* write the child identifiers if required */
+		if ((flags & FLAG_IDENTIFIERS) != 0) {
+			for (int i = 0; i < count; i++) {
+				for (int j = childOffsets[i]; j < childOffsets[i] + childCounts[i]; j++) {
+					buf.putInt(childIdentifiers[j]);
 				}
 			}
+		}
 
-			/* write the child identifiers if required */
-			if ((flags & FLAG_IDENTIFIERS) != 0) {
-				for (Entry entry : entries.values()) {
-					for (ChildEntry child : entry.entries.values()) {
-						os.writeInt(child.identifier);
-					}
-				}
+		/* remember where the fixed size fields are, so they can be patched later */
+		layoutSize = buf.position();
+		layoutStructure = structure;
+
+		return (ByteBuffer) buf.flip();
+	}
+
+	/**
+	 * Calculates the number of bytes this table takes up when encoded.
+	 * 
+	 * @return The size.
+	 */
+	private int getEncodedSize() {
+		int children = 0;
+		for (int i = 0; i < count; i++) {
+			children += childCounts[i];
+		}
+
+		/* the header, and a count, delta-encoded id, CRC and version per entry */
+		long size = 1 + (format >= 6 ? 4 : 0) + 1 + getSmartSize(count) + count * 8L;
+		int last = 0;
+		for (int i = 0; i < count; i++) {
+			size += getSmartSize(ids[i] - last) + getSmartSize(childCounts[i]);
+			last = ids[i];
+		}
+
+		/* the delta-encoded child ids */
+		for (int i = 0; i < count; i++) {
+			last = 0;
+			for (int j = childOffsets[i]; j < childOffsets[i] + childCounts[i]; j++) {
+				size += getSmartSize(childIds[j] - last);
+				last = childIds[j];
 			}
+		}
 
-			/* convert the stream to a byte array and then wrap a buffer */
-			byte[] bytes = bout.toByteArray();
-			return ByteBuffer.wrap(bytes);
-		} finally {
-			os.close();
+		/* and the optional fields */
+		if ((flags & FLAG_IDENTIFIERS) != 0)
+			size += (count + children) * 4L;
+		if ((flags & FLAG_HASH) != 0)
+			size += count * 4L;
+		if ((flags & FLAG_WHIRLPOOL) != 0)
+			size += count * 64L;
+		if ((flags & FLAG_SIZES) != 0)
+			size += count * 8L;
+
+		return (int) size;
+	}
+
+	/**
+	 * Gets the number of bytes {@link #putSmartFormat(ByteBuffer, int)}
+	 * writes for the specified value.
+	 * 
+	 * @param value
+	 *            The value.
+	 * @return The number of bytes.
+	 */
+	private int getSmartSize(int value) {
+		return format >= 7 && (value & 0xFFFF) >= 32768 ? 4 : 2;
+	}
+
+	/**
+	 * Puts a value into the buffer in the way
+	 * {@link #putSmartFormat(int, DataOutputStream)} writes it to a stream.
+	 * 
+	 * @param buf
+	 *            The buffer.
+	 * @param value
+	 *            The value.
+	 */
+	private void putSmartFormat(ByteBuffer buf, int value) {
+		if (format >= 7 && (value & 0xFFFF) >= 32768)
+			buf.putInt(0x80000000 | value);
+		else
+			buf.putShort((short) value);
+	}
+
+	/**
+	 * Updates the version of this table and the details of the entry with the
+	 * specified id in an encoded copy of this table, without encoding the
+	 * whole table again. This is only possible if no entries or children have
+	 * been added or removed since the table was decoded from or encoded into
+	 * the buffer, and if the entry's children are unchanged.
+	 * 
+	 * @param buffer
+	 *            The writable buffer this table was last decoded from or
+	 *            encoded into, with the table starting at index zero.
+	 * @param id
+	 *            The id of the entry.
+	 * @return {@code true} if the buffer was updated, {@code false} if the
+	 *         table has to be encoded again instead.
+	 */
+	public boolean patch(ByteBuffer buffer, int id) {
+		int slot = getSlot(id);
+		if (slot < 0 || layoutStructure != structure || buffer.limit() != layoutSize)
+			return false;
+
+		if (format >= 6)
+			buffer.putInt(1, version);
+
+		if ((flags & FLAG_IDENTIFIERS) != 0)
+			buffer.putInt(identifierOffset + slot * 4, identifiers[slot]);
+
+		buffer.putInt(crcOffset + slot * 4, crcs[slot]);
+
+		if ((flags & FLAG_HASH) != 0)
+			buffer.putInt(hashOffset + slot * 4, hashes[slot]);
+
+		if ((flags & FLAG_WHIRLPOOL) != 0) {
+			byte[] whirlpools = getWhirlpools();
+			for (int i = 0; i < 64; i++)
+				buffer.put(whirlpoolOffset + slot * 64 + i, whirlpools[slot * 64 + i]);
 		}
+
+		if ((flags & FLAG_SIZES) != 0) {
+			buffer.putInt(sizeOffset + slot * 8, compressedSizes[slot]);
+			buffer.putInt(sizeOffset + slot * 8 + 4, uncompressedSizes[slot]);
+		}
+
+		buffer.putInt(versionOffset + slot * 4, versions[slot]);
+		return true;
 	}
 
 	/**
@@ -675,7 +1337,10 @@ public class ReferenceTable {
 	 * @return The entry.
 	 */
 	public Entry getEntry(int id) {
-		return entries.get(id);
+		if (getSlot(id) < 0)
+			return null;
+
+		return new Entry(this, id);
 	}
 
 	/**
@@ -701,11 +1366,11 @@ public class ReferenceTable {
 	 * @return The entry.
 	 */
 	public ChildEntry getEntry(int id, int child) {
-		Entry entry = entries.get(id);
-		if (entry == null)
+		int slot = getSlot(id);
+		if (slot < 0 || getChildPosition(slot, child) < 0)
 			return null;
 
-		return entry.getEntry(child);
+		return new ChildEntry(this, id, child);
 	}
 
 	/**
@@ -736,7 +1401,9 @@ public class ReferenceTable {
 	}
 
 	/**
-	 * Replaces or inserts the entry with the specified id.
+	 * Replaces or inserts the entry with the specified id. The details and
+	 * children of the entry are copied into this table, and the entry becomes
+	 * a view of them.
 	 * 
 	 * @param id
 	 *            The id.
@@ -744,7 +1411,68 @@ public class ReferenceTable {
 	 *            The entry.
 	 */
 	public void putEntry(int id, Entry entry) {
-		entries.put(id, entry);
+		/* read the details out of the entry before it may be changed below */
+		int identifier = entry.getIdentifier();
+		int crc = entry.getCrc();
+		int hash = entry.getHash();
+		int compressed = entry.getCompressed();
+		int uncompressed = entry.getUncompressed();
+		int version = entry.getVersion();
+		byte[] whirlpool = entry.table != null ? entry.getWhirlpool() : entry.whirlpool;
+		int[] children = new int[entry.size()];
+		int[] childIdentifiers = new int[children.length];
+		if (entry.table == null) {
+			if (entry.entries != null) {
+				int i = 0;
+				for (Map.Entry<Integer, ChildEntry> child : entry.entries.entrySet()) {
+					children[i] = child.getKey();
+					childIdentifiers[i++] = child.getValue().getIdentifier();
+				}
+			}
+		} else {
+			ReferenceTable other = entry.table;
+			int slot = entry.slot();
+			System.arraycopy(other.childIds, other.childOffsets[slot], children, 0, children.length);
+			System.arraycopy(other.childIdentifiers, other.childOffsets[slot], childIdentifiers, 0, children.length);
+		}
+
+		/* replace any existing entry with an empty one */
+		int slot = getSlot(id);
+		if (slot >= 0)
+			removeSlot(slot);
+		slot = -(getSlot(id) + 1);
+		insertSlot(slot, id);
+
+		/* copy the details into the table */
+		identifiers[slot] = identifier;
+		crcs[slot] = crc;
+		hashes[slot] = hash;
+		compressedSizes[slot] = compressed;
+		uncompressedSizes[slot] = uncompressed;
+		versions[slot] = version;
+		if (whirlpool != null)
+			System.arraycopy(whirlpool, 0, getWhirlpools(), slot * 64, 64);
+
+		/* append the children to the end of the child pool */
+		ensureChildCapacity(childPoolSize + children.length);
+		System.arraycopy(children, 0, childIds, childPoolSize, children.length);
+		System.arraycopy(childIdentifiers, 0, this.childIdentifiers, childPoolSize, children.length);
+		childOffsets[slot] = childPoolSize;
+		childCounts[slot] = children.length;
+		childPoolSize += children.length;
+
+		/* the child entry objects of a detached entry become views too */
+		if (entry.table == null && entry.entries != null) {
+			for (Map.Entry<Integer, ChildEntry> child : entry.entries.entrySet()) {
+				child.getValue().attach(this, id, child.getKey());
+			}
+		}
+
+		entry.table = this;
+		entry.id = id;
+		entry.entries = null;
+		entry.whirlpool = null;
+		identifierTable = null;
 	}
 
 	/**
@@ -754,7 +1482,11 @@ public class ReferenceTable {
 	 *            The id.
 	 */
 	public void removeEntry(int id) {
-		entries.remove(id);
+		int slot = getSlot(id);
+		if (slot >= 0) {
+			removeSlot(slot);
+			identifierTable = null;
+		}
 	}
 
 	/**
@@ -765,6 +1497,8 @@ public class ReferenceTable {
 	 */
 	public void setFlags(int flags) {
 		this.flags = flags;
+		identifierTable = null;
+		structure++;
 	}
 
 	/**
@@ -775,6 +1509,7 @@ public class ReferenceTable {
 	 */
 	public void setFormat(int format) {
 		this.format = format;
+		structure++;
 	}
 
 	/**
@@ -793,7 +1528,7 @@ public class ReferenceTable {
 	 * @return The number of actual entries.
 	 */
 	public int size() {
-		return entries.size();
+		return count;
 	}
 
 	/**
@@ -803,11 +1538,8 @@ public class ReferenceTable {
 	 */
 	public int getArchiveSize() {
 		long sum = 0;
-		for (int i = 0; i < capacity(); i++) {
-			Entry e = entries.get(i);
-			if (e != null) {
-				sum += e.getUncompressed();
-			}
+		for (int i = 0; i < count; i++) {
+			sum += uncompressedSizes[i];
 		}
 		return (int) sum;
 	}
@@ -818,6 +1550,16 @@ public class ReferenceTable {
 	 * @return The table
 	 */
 	public Identifiers getIdentifiers() {
-		return identifiers;
+		Identifiers table = identifierTable;
+		if (table == null) {
+			int[] identifiers = new int[capacity()];
+			if ((flags & FLAG_IDENTIFIERS) != 0) {
+				for (int i = 0; i < count; i++) {
+					identifiers[ids[i]] = this.identifiers[i];
+				}
+			}
+			identifierTable = table = new Identifiers(identifiers);
+		}
+		return table;
 	}
 }
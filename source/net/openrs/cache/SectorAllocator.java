@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache;
+
+import java.util.BitSet;
+
+/**
+ * A {@link SectorAllocator} hands out the sectors of a {@link FileStore}'s
+ * data file. By default every sector is allocated from the end of the file,
+ * but once a map of the sectors in use has been built, sectors freed by
+ * rewritten or shrunken files are reused before the file is grown.
+ */
+final class SectorAllocator {
+
+	/**
+	 * The first sector past the end of the data file, or {@code -1} if it has
+	 * not been calculated yet.
+	 */
+	private int end = -1;
+
+	/**
+	 * The sectors that are in use, or {@code null} if free sectors are not
+	 * being tracked.
+	 */
+	private BitSet used;
+
+	/**
+	 * The number of sectors in use.
+	 */
+	private int usedCount;
+
+	/**
+	 * Checks if the end of the data file has been calculated.
+	 * 
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	synchronized boolean isInitialised() {
+		return end != -1;
+	}
+
+	/**
+	 * Calculates the end of the data file, unless it has already been
+	 * calculated.
+	 * 
+	 * @param size
+	 *            The size of the data file in bytes.
+	 */
+	synchronized void initialise(long size) {
+		if (end == -1)
+			end = getSectorCount(size);
+	}
+
+	/**
+	 * Starts tracking free sectors.
+	 * 
+	 * @param size
+	 *            The size of the data file in bytes.
+	 * @param used
+	 *            The sectors that are in use.
+	 */
+	synchronized void track(long size, BitSet used) {
+		this.end = getSectorCount(size);
+		this.used = used;
+		this.usedCount = used.cardinality();
+	}
+
+	/**
+	 * Checks if free sectors are being tracked.
+	 * 
+	 * @return {@code true} if so, {@code false} if not.
+	 */
+	synchronized boolean isTracking() {
+		return used != null;
+	}
+
+	/**
+	 * Allocates a sector. Each sector is only handed out once until it is
+	 * released.
+	 * 
+	 * @return The number of the sector.
+	 */
+	synchronized int allocate() {
+		if (used != null) {
+			int sector = used.nextClearBit(1);
+			usedCount++;
+			if (sector < end) {
+				used.set(sector);
+				return sector;
+			}
+
+			used.set(end);
+		}
+		return end++;
+	}
+
+	/**
+	 * Releases a sector so it can be allocated again. This does nothing if
+	 * free sectors are not being tracked.
+	 * 
+	 * @param sector
+	 *            The number of the sector.
+	 */
+	synchronized void release(int sector) {
+		if (used != null && sector > 0 && used.get(sector)) {
+			used.clear(sector);
+			usedCount--;
+		}
+	}
+
+	/**
+	 * Allocates a run of consecutive free sectors, all of which lie before the
+	 * specified limit. The first run that fits is used.
+	 * 
+	 * @param count
+	 *            The number of sectors.
+	 * @param limit
+	 *            The sector which the run must end before.
+	 * @return The numbers of the sectors, or {@code null} if there is no such
+	 *         run or free sectors are not being tracked.
+	 */
+	synchronized int[] allocateRun(int count, int limit) {
+		if (used == null)
+			return null;
+
+		limit = Math.min(limit, end);
+		for (int start = used.nextClearBit(1); start + count <= limit; start = used.nextClearBit(start)) {
+			int next = used.nextSetBit(start);
+			if (next == -1 || next >= start + count) {
+				int[] sectors = new int[count];
+				for (int i = 0; i < count; i++)
+					sectors[i] = start + i;
+				used.set(start, start + count);
+				usedCount += count;
+				return sectors;
+			}
+			start = next;
+		}
+		return null;
+	}
+
+	/**
+	 * Allocates the lowest free sectors, all of which lie before the specified
+	 * limit, regardless of whether they are consecutive.
+	 * 
+	 * @param count
+	 *            The number of sectors.
+	 * @param limit
+	 *            The sector which every allocated sector must lie before.
+	 * @return The numbers of the sectors, or {@code null} if there are not
+	 *         enough or free sectors are not being tracked.
+	 */
+	synchronized int[] allocateLowest(int count, int limit) {
+		if (used == null)
+			return null;
+
+		limit = Math.min(limit, end);
+		int[] sectors = new int[count];
+		int sector = 0;
+		for (int i = 0; i < count; i++) {
+			sector = used.nextClearBit(sector + 1);
+			if (sector >= limit)
+				return null;
+			sectors[i] = sector;
+		}
+
+		for (int allocated : sectors)
+			used.set(allocated);
+		usedCount += count;
+		return sectors;
+	}
+
+	/**
+	 * Moves the end of the data file back to just after the last sector in
+	 * use.
+	 * 
+	 * @return The new end of the data file.
+	 */
+	synchronized int truncate() {
+		if (used != null)
+			end = Math.max(used.length(), 1);
+		return end;
+	}
+
+	/**
+	 * Gets the number of sectors in use.
+	 * 
+	 * @return The number of sectors in use, or {@code 0} if free sectors are
+	 *         not being tracked.
+	 */
+	synchronized int getUsedSectors() {
+		return usedCount;
+	}
+
+	/**
+	 * Gets the number of free sectors before the end of the data file.
+	 * 
+	 * @return The number of free sectors, or {@code 0} if free sectors are not
+	 *         being tracked.
+	 */
+	synchronized int getFreeSectors() {
+		if (used == null)
+			return 0;
+
+		return end - 1 - usedCount;
+	}
+
+	/**
+	 * Gets the number of sectors in a data file of the specified size. The
+	 * first sector is never used, so this is always at least one.
+	 * 
+	 * @param size
+	 *            The size of the data file in bytes.
+	 * @return The number of sectors.
+	 */
+	private static int getSectorCount(long size) {
+		return Math.max((int) ((size + Sector.SIZE - 1) / (long) Sector.SIZE), 1);
+	}
+
+}
@@ -7,6 +7,7 @@ import java.util.zip.CRC32;
 import net.openrs.cache.Cache;
 import net.openrs.cache.Constants;
 import net.openrs.cache.Container;
+import net.openrs.cache.ContainerHeader;
 import net.openrs.cache.FileStore;
 import net.openrs.cache.ReferenceTable;
 import net.openrs.cache.ReferenceTable.Entry;
@@ -35,20 +36,26 @@ public final class CacheVerifier {
 						continue;
 					}
 
-					/* last two bytes are the version and shouldn't be included */
-					byte[] bytes = new byte[buffer.limit() - 2];
-					buffer.position(0);
-					buffer.get(bytes, 0, bytes.length);
+					/* the version trailer isn't included in the checksum */
+					ContainerHeader header;
+					try {
+						header = Container.peek(buffer);
+					} catch (IOException ex) {
+						System.out.println(type + ":" + file + " corrupt");
+						continue;
+					}
+
+					ByteBuffer data = buffer.duplicate();
+					data.limit(data.position() + header.getSize());
 
 					CRC32 crc = new CRC32();
-					crc.update(bytes, 0, bytes.length);
+					crc.update(data);
 
 					if ((int) crc.getValue() != entry.getCrc()) {
 						System.out.println(type + ":" + file + " corrupt");
 					}
 
-					buffer.position(buffer.limit() - 2);
-					if ((buffer.getShort() & 0xFFFF) != entry.getVersion()) {
+					if (!header.isVersioned() || header.getVersion() != entry.getVersion()) {
 						System.out.println(type + ":" + file + " out of date");
 					}
 				}
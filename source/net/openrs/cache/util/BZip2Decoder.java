@@ -0,0 +1,596 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.tools.bzip2.BZip2Constants;
+
+/**
+ * A {@link BZip2Decoder} uncompresses the BZIP2 files stored in the cache,
+ * which always use a block size of 100k and have their "BZh1" header
+ * stripped.
+ * <p />
+ * Unlike {@link org.apache.tools.bzip2.CBZip2InputStream}, the decoder works
+ * directly on arrays: the compressed bytes are read through a 64-bit bit
+ * buffer, Huffman codes are decoded with lookup tables and the inverse
+ * Burrows-Wheeler transform is written straight into the destination array.
+ * Each thread reuses its own decoder so the large block arrays are only
+ * allocated once.
+ */
+final class BZip2Decoder {
+
+	/**
+	 * The magic number at the start of each block.
+	 */
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+
+	/**
+	 * The magic number at the end of the stream.
+	 */
+	private static final long END_MAGIC = 0x177245385090L;
+
+	/**
+	 * The maximum size of a block, for a block size of 100k.
+	 */
+	private static final int BLOCK_SIZE = 100000;
+
+	/**
+	 * The maximum number of Huffman tables.
+	 */
+	private static final int MAX_GROUPS = 6;
+
+	/**
+	 * The maximum number of symbols in a Huffman table.
+	 */
+	private static final int MAX_ALPHA_SIZE = 258;
+
+	/**
+	 * The maximum length of a Huffman code.
+	 */
+	private static final int MAX_CODE_LENGTH = 20;
+
+	/**
+	 * The number of symbols decoded with each selected Huffman table.
+	 */
+	private static final int GROUP_SIZE = 50;
+
+	/**
+	 * The maximum number of selectors that are used.
+	 */
+	private static final int MAX_SELECTORS = 2 + (900000 / GROUP_SIZE);
+
+	/**
+	 * The number of bits looked up at once when decoding a Huffman code.
+	 */
+	private static final int LOOKUP_BITS = 10;
+
+	/**
+	 * The CRC table of the (non-reflected) CRC32 used by BZIP2.
+	 */
+	private static final int[] CRC_TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < CRC_TABLE.length; i++) {
+			int crc = i << 24;
+			for (int bit = 0; bit < 8; bit++)
+				crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	/**
+	 * The decoder of each thread.
+	 */
+	private static final ThreadLocal<BZip2Decoder> DECODER = ThreadLocal.withInitial(BZip2Decoder::new);
+
+	/**
+	 * Uncompresses a BZIP2 file of a known size directly into the specified
+	 * array.
+	 * 
+	 * @param bytes
+	 *            The array holding the compressed bytes without the header.
+	 * @param offset
+	 *            The offset of the compressed bytes.
+	 * @param length
+	 *            The number of compressed bytes.
+	 * @param uncompressed
+	 *            The array to uncompress into, which must be exactly the size
+	 *            of the uncompressed file.
+	 * @throws IOException
+	 *             if the file is corrupt, or the size of the uncompressed file
+	 *             does not match the size of the array.
+	 */
+	static void decode(byte[] bytes, int offset, int length, byte[] uncompressed) throws IOException {
+		BZip2Decoder decoder = DECODER.get();
+		try {
+			decoder.decodeStream(bytes, offset, length, uncompressed);
+		} finally {
+			decoder.bytes = null;
+		}
+	}
+
+	/**
+	 * The block being decoded. The low 8 bits of each element hold the byte
+	 * produced by the move-to-front pass, and the upper bits the links of the
+	 * inverse Burrows-Wheeler transform.
+	 */
+	private final int[] tt = new int[BLOCK_SIZE];
+
+	/**
+	 * The number of occurrences of each byte in the block, which become the
+	 * cumulative counts used by the inverse Burrows-Wheeler transform.
+	 */
+	private final int[] counts = new int[256];
+
+	/**
+	 * The bytes used by the block, in order.
+	 */
+	private final byte[] seqToUnseq = new byte[256];
+
+	/**
+	 * The move-to-front list of bytes.
+	 */
+	private final byte[] mtf = new byte[256];
+
+	/**
+	 * The Huffman table selected for each group of symbols.
+	 */
+	private final byte[] selectors = new byte[MAX_SELECTORS];
+
+	/**
+	 * The code lengths of each Huffman table.
+	 */
+	private final byte[][] lengths = new byte[MAX_GROUPS][MAX_ALPHA_SIZE];
+
+	/**
+	 * The lookup tables of each Huffman table, indexed by the next
+	 * {@link #LOOKUP_BITS} bits. Each entry holds a symbol and the length of
+	 * its code, or zero if the code is longer.
+	 */
+	private final short[][] lookup = new short[MAX_GROUPS][1 << LOOKUP_BITS];
+
+	/**
+	 * The largest code of each length, for codes too long for the lookup
+	 * tables.
+	 */
+	private final int[][] limit = new int[MAX_GROUPS][MAX_CODE_LENGTH + 1];
+
+	/**
+	 * The smallest code of each length.
+	 */
+	private final int[][] firstCode = new int[MAX_GROUPS][MAX_CODE_LENGTH + 1];
+
+	/**
+	 * The index in {@link #perm} of the first symbol of each code length.
+	 */
+	private final int[][] firstIndex = new int[MAX_GROUPS][MAX_CODE_LENGTH + 1];
+
+	/**
+	 * The symbols of each Huffman table, sorted by code length.
+	 */
+	private final int[][] perm = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+
+	/**
+	 * The length of the shortest code of each Huffman table.
+	 */
+	private final int[] minLengths = new int[MAX_GROUPS];
+
+	/**
+	 * The compressed bytes.
+	 */
+	private byte[] bytes;
+
+	/**
+	 * The position of the next compressed byte.
+	 */
+	private int position;
+
+	/**
+	 * The end of the compressed bytes.
+	 */
+	private int end;
+
+	/**
+	 * The buffered bits, with the next bit at {@code bitCount - 1}.
+	 */
+	private long bits;
+
+	/**
+	 * The number of buffered bits.
+	 */
+	private int bitCount;
+
+	/**
+	 * Creates a new decoder.
+	 */
+	private BZip2Decoder() {
+
+	}
+
+	/**
+	 * Decodes every block of a stream.
+	 * 
+	 * @param bytes
+	 *            The array holding the compressed bytes.
+	 * @param offset
+	 *            The offset of the compressed bytes.
+	 * @param length
+	 *            The number of compressed bytes.
+	 * @param uncompressed
+	 *            The array to uncompress into.
+	 * @throws IOException
+	 *             if the stream is corrupt or has the wrong size.
+	 */
+	private void decodeStream(byte[] bytes, int offset, int length, byte[] uncompressed) throws IOException {
+		this.bytes = bytes;
+		this.position = offset;
+		this.end = offset + length;
+		this.bits = 0;
+		this.bitCount = 0;
+
+		int written = 0;
+		int combinedCrc = 0;
+		while (true) {
+			long magic = ((long) readBits(24) << 24) | readBits(24);
+			int crc = readBits(32);
+			if (magic == END_MAGIC) {
+				if (crc != combinedCrc)
+					throw new IOException("BZIP2 stream CRC error");
+
+				break;
+			} else if (magic != BLOCK_MAGIC) {
+				throw new IOException("Bad BZIP2 block header");
+			}
+
+			written = decodeBlock(uncompressed, written, crc);
+			combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ crc;
+		}
+
+		/* the padding bits past the end are zero, so check they were not used */
+		if ((long) (position - offset) * 8 - bitCount > (long) length * 8)
+			throw new EOFException("Unexpected end of BZIP2 stream");
+
+		if (written != uncompressed.length)
+			throw new IOException("Length mismatch. [ " + written + ", " + uncompressed.length + " ]");
+	}
+
+	/**
+	 * Decodes a block.
+	 * 
+	 * @param out
+	 *            The array to uncompress into.
+	 * @param written
+	 *            The number of bytes already written to the array.
+	 * @param expectedCrc
+	 *            The CRC of the uncompressed block.
+	 * @return The number of bytes written to the array, including this block.
+	 * @throws IOException
+	 *             if the block is corrupt or the array is too small.
+	 */
+	private int decodeBlock(byte[] out, int written, int expectedCrc) throws IOException {
+		boolean randomised = readBits(1) == 1;
+		int origPtr = readBits(24);
+
+		/* read the bytes used by the block */
+		int inUse = 0;
+		int ranges = readBits(16);
+		for (int i = 0; i < 16; i++) {
+			if ((ranges & (0x8000 >>> i)) != 0) {
+				int used = readBits(16);
+				for (int j = 0; j < 16; j++) {
+					if ((used & (0x8000 >>> j)) != 0)
+						seqToUnseq[inUse++] = (byte) (i * 16 + j);
+				}
+			}
+		}
+		if (inUse == 0)
+			throw new IOException("Invalid BZIP2 block");
+
+		int alphaSize = inUse + 2;
+		int groups = readBits(3);
+		int selectorCount = readBits(15);
+		if (groups < 2 || groups > MAX_GROUPS || selectorCount < 1)
+			throw new IOException("Invalid BZIP2 block");
+
+		/* read the move-to-front encoded selectors */
+		byte[] groupMtf = { 0, 1, 2, 3, 4, 5 };
+		for (int i = 0; i < selectorCount; i++) {
+			int j = 0;
+			while (readBits(1) == 1) {
+				if (++j >= groups)
+					throw new IOException("Invalid BZIP2 selector");
+			}
+
+			byte group = groupMtf[j];
+			System.arraycopy(groupMtf, 0, groupMtf, 1, j);
+			groupMtf[0] = group;
+			if (i < MAX_SELECTORS)
+				selectors[i] = group;
+		}
+		selectorCount = Math.min(selectorCount, MAX_SELECTORS);
+
+		/* read the delta encoded code lengths of each Huffman table */
+		for (int t = 0; t < groups; t++) {
+			byte[] lengths = this.lengths[t];
+			int length = readBits(5);
+			for (int symbol = 0; symbol < alphaSize; symbol++) {
+				while (true) {
+					if (length < 1 || length > MAX_CODE_LENGTH)
+						throw new IOException("Invalid BZIP2 code length");
+					if (readBits(1) == 0)
+						break;
+
+					length += readBits(1) == 0 ? 1 : -1;
+				}
+				lengths[symbol] = (byte) length;
+			}
+			createTable(t, alphaSize);
+		}
+
+		/* decode the Huffman coded symbols, undoing the run-length and move-to-front coding */
+		int[] tt = this.tt;
+		int[] counts = this.counts;
+		byte[] mtf = this.mtf;
+		Arrays.fill(counts, 0);
+		System.arraycopy(seqToUnseq, 0, mtf, 0, inUse);
+
+		int endOfBlock = inUse + 1;
+		int size = 0;
+		int run = 0, runBit = 1;
+		int selector = 0, groupLeft = 0, group = 0;
+		while (true) {
+			if (groupLeft == 0) {
+				if (selector >= selectorCount)
+					throw new IOException("Invalid BZIP2 selector");
+
+				group = selectors[selector++];
+				groupLeft = GROUP_SIZE;
+			}
+			groupLeft--;
+
+			int symbol = decodeSymbol(group);
+			if (symbol <= 1) {
+				/* RUNA and RUNB encode the length of a run of the first byte in bijective base 2 */
+				run += (symbol + 1) * runBit;
+				runBit <<= 1;
+				if (run > BLOCK_SIZE)
+					throw new IOException("BZIP2 block overrun");
+
+				continue;
+			}
+
+			if (run > 0) {
+				if (size + run > BLOCK_SIZE)
+					throw new IOException("BZIP2 block overrun");
+
+				int value = mtf[0] & 0xFF;
+				counts[value] += run;
+				Arrays.fill(tt, size, size + run, value);
+				size += run;
+				run = 0;
+				runBit = 1;
+			}
+
+			if (symbol == endOfBlock)
+				break;
+			else if (size >= BLOCK_SIZE)
+				throw new IOException("BZIP2 block overrun");
+
+			int index = symbol - 1;
+			byte value = mtf[index];
+			System.arraycopy(mtf, 0, mtf, 1, index);
+			mtf[0] = value;
+
+			counts[value & 0xFF]++;
+			tt[size++] = value & 0xFF;
+		}
+
+		if (origPtr >= size)
+			throw new IOException("Invalid BZIP2 block origin");
+
+		/* link each byte to the next one of the inverse Burrows-Wheeler transform */
+		int sum = 0;
+		for (int i = 0; i < 256; i++) {
+			int count = counts[i];
+			counts[i] = sum;
+			sum += count;
+		}
+		for (int i = 0; i < size; i++)
+			tt[counts[tt[i] & 0xFF]++] |= i << 8;
+
+		/* follow the links, undoing the initial run-length coding and calculating the CRC */
+		int[] randomTable = BZip2Constants.rNums;
+		int randomLeft = 0, randomIndex = 0;
+		int crc = -1;
+		int last = -1, repeat = 0;
+		int pos = tt[origPtr] >>> 8;
+		for (int i = 0; i < size; i++) {
+			pos = tt[pos];
+			int value = pos & 0xFF;
+			pos >>>= 8;
+
+			if (randomised) {
+				if (randomLeft == 0) {
+					randomLeft = randomTable[randomIndex];
+					randomIndex = (randomIndex + 1) & 511;
+				}
+				if (--randomLeft == 1)
+					value ^= 1;
+			}
+
+			if (repeat == 4) {
+				/* the byte after four equal bytes is the number of extra copies */
+				if (written + value > out.length)
+					throw new IOException("Length mismatch. Uncompressed data exceeds " + out.length + " bytes.");
+
+				for (int j = 0; j < value; j++) {
+					out[written++] = (byte) last;
+					crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ last) & 0xFF];
+				}
+				repeat = 0;
+				continue;
+			}
+
+			if (value != last) {
+				last = value;
+				repeat = 1;
+			} else {
+				repeat++;
+			}
+
+			if (written == out.length)
+				throw new IOException("Length mismatch. Uncompressed data exceeds " + out.length + " bytes.");
+
+			out[written++] = (byte) value;
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ value) & 0xFF];
+		}
+
+		if (~crc != expectedCrc)
+			throw new IOException("BZIP2 block CRC error");
+
+		return written;
+	}
+
+	/**
+	 * Creates the decoding tables of a Huffman table from its code lengths.
+	 * Codes are assigned canonically: in order of length, and then in order
+	 * of symbol.
+	 * 
+	 * @param t
+	 *            The Huffman table.
+	 * @param alphaSize
+	 *            The number of symbols.
+	 * @throws IOException
+	 *             if the code lengths do not describe a valid code.
+	 */
+	private void createTable(int t, int alphaSize) throws IOException {
+		byte[] lengths = this.lengths[t];
+		int[] limit = this.limit[t];
+		int[] firstCode = this.firstCode[t];
+		int[] firstIndex = this.firstIndex[t];
+		int[] perm = this.perm[t];
+		short[] lookup = this.lookup[t];
+
+		/* sort the symbols by code length */
+		int minLength = MAX_CODE_LENGTH;
+		int index = 0;
+		for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+			firstIndex[length] = index;
+			for (int symbol = 0; symbol < alphaSize; symbol++) {
+				if (lengths[symbol] == length)
+					perm[index++] = symbol;
+			}
+			if (index > firstIndex[length])
+				minLength = Math.min(minLength, length);
+		}
+		minLengths[t] = minLength;
+
+		/* assign the codes */
+		int code = 0;
+		for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+			int count = (length == MAX_CODE_LENGTH ? alphaSize : firstIndex[length + 1]) - firstIndex[length];
+			firstCode[length] = code;
+			code += count;
+			limit[length] = code - 1;
+			if (code > 1 << length)
+				throw new IOException("Invalid BZIP2 Huffman table");
+
+			code <<= 1;
+		}
+
+		/* fill the lookup table with the codes that are short enough */
+		Arrays.fill(lookup, (short) 0);
+		for (int length = 1; length <= LOOKUP_BITS; length++) {
+			int count = firstIndex[length + 1] - firstIndex[length];
+			for (int i = 0; i < count; i++) {
+				int symbol = perm[firstIndex[length] + i];
+				int start = (firstCode[length] + i) << (LOOKUP_BITS - length);
+				Arrays.fill(lookup, start, start + (1 << (LOOKUP_BITS - length)), (short) ((symbol << 5) | length));
+			}
+		}
+	}
+
+	/**
+	 * Decodes a Huffman coded symbol.
+	 * 
+	 * @param t
+	 *            The Huffman table.
+	 * @return The symbol.
+	 * @throws IOException
+	 *             if the code is invalid.
+	 */
+	private int decodeSymbol(int t) throws IOException {
+		if (bitCount < MAX_CODE_LENGTH)
+			refill();
+
+		int entry = lookup[t][(int) (bits >>> (bitCount - LOOKUP_BITS)) & ((1 << LOOKUP_BITS) - 1)];
+		if (entry != 0) {
+			bitCount -= entry & 0x1F;
+			return entry >>> 5;
+		}
+
+		/* the code is longer than the lookup table */
+		int[] limit = this.limit[t];
+		for (int length = Math.max(minLengths[t], LOOKUP_BITS + 1); length <= MAX_CODE_LENGTH; length++) {
+			int code = (int) (bits >>> (bitCount - length)) & ((1 << length) - 1);
+			if (code <= limit[length]) {
+				bitCount -= length;
+				return perm[t][firstIndex[t][length] + code - firstCode[t][length]];
+			}
+		}
+		throw new IOException("Invalid BZIP2 Huffman code");
+	}
+
+	/**
+	 * Reads up to 32 bits.
+	 * 
+	 * @param count
+	 *            The number of bits.
+	 * @return The bits.
+	 */
+	private int readBits(int count) {
+		if (bitCount < count)
+			refill();
+
+		bitCount -= count;
+		return (int) ((bits >>> bitCount) & ((1L << count) - 1));
+	}
+
+	/**
+	 * Fills the bit buffer with more than 56 bits. Zero bits are used past
+	 * the end of the compressed bytes.
+	 */
+	private void refill() {
+		while (bitCount <= 56) {
+			int value = position < end ? bytes[position] & 0xFF : 0;
+			position++;
+
+			bits = (bits << 8) | value;
+			bitCount += 8;
+		}
+	}
+
+}
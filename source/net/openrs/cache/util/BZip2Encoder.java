@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.tools.bzip2.CBZip2OutputStream;
+
+/**
+ * A {@link BZip2Encoder} compresses files into the headerless BZIP2 format
+ * stored in the cache, with a block size of 100k.
+ * <p />
+ * Files that need more than one block are split into chunks that each fit in
+ * a single block. The chunks are compressed in parallel on the common
+ * {@link ForkJoinPool}, and the blocks are then joined into one stream with
+ * a combined CRC. Blocks are independent of each other, so the result can be
+ * read by any BZIP2 decoder.
+ */
+final class BZip2Encoder {
+
+	/**
+	 * The magic number at the end of the stream.
+	 */
+	private static final long END_MAGIC = 0x177245385090L;
+
+	/**
+	 * The size of the "h1" header written by {@link CBZip2OutputStream}, in
+	 * bits.
+	 */
+	private static final int HEADER_BITS = 16;
+
+	/**
+	 * The size of the end of stream marker and combined CRC, in bits.
+	 */
+	private static final int TRAILER_BITS = 48 + 32;
+
+	/**
+	 * The number of run-length encoded bytes put in each chunk. A block holds
+	 * up to 99,980 bytes, so this leaves a margin for the final run of a
+	 * chunk.
+	 */
+	private static final int CHUNK_SIZE = 99000;
+
+	/**
+	 * Compresses a file.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @return The compressed bytes without the header.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	static byte[] encode(byte[] bytes) throws IOException {
+		int[] chunks = split(bytes);
+
+		/* a single block is compressed on this thread, as before */
+		if (chunks.length == 2) {
+			byte[] stream = compress(bytes, 0, bytes.length);
+			return Arrays.copyOfRange(stream, HEADER_BITS / 8, stream.length);
+		}
+
+		/* compress the chunks in parallel */
+		List<ForkJoinTask<byte[]>> tasks = new ArrayList<>(chunks.length - 1);
+		for (int i = 0; i < chunks.length - 1; i++) {
+			int start = chunks[i], end = chunks[i + 1];
+			tasks.add(ForkJoinPool.commonPool().submit(() -> compress(bytes, start, end - start)));
+		}
+
+		/* and join their blocks together, in order */
+		BitWriter writer = new BitWriter(bytes.length / 4 + 64);
+		int combinedCrc = 0;
+		for (ForkJoinTask<byte[]> task : tasks) {
+			byte[] stream;
+			try {
+				stream = task.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException(ex);
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException)
+					throw (IOException) ex.getCause();
+
+				throw new IOException(ex.getCause());
+			}
+
+			int blockCrc = (int) getBits(stream, HEADER_BITS + 48, 32);
+			long end = findEndOfStream(stream, blockCrc);
+			writer.putBits(stream, HEADER_BITS, end);
+			combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ blockCrc;
+		}
+
+		writer.putBits(END_MAGIC >>> 24, 24);
+		writer.putBits(END_MAGIC & 0xFFFFFF, 24);
+		writer.putBits(combinedCrc & 0xFFFFFFFFL, 32);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Splits a file into chunks that each fit in a single block, following
+	 * the run-length encoding applied before blocks are filled.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @return The start of each chunk, followed by the end of the file.
+	 */
+	private static int[] split(byte[] bytes) {
+		int[] chunks = new int[2];
+		int count = 1;
+
+		int size = 0;
+		for (int i = 0; i < bytes.length;) {
+			/* runs of four to 255 bytes are encoded as four bytes and a count */
+			int run = 1;
+			while (i + run < bytes.length && run < 255 && bytes[i + run] == bytes[i])
+				run++;
+
+			int encoded = run < 4 ? run : 5;
+			if (size + encoded > CHUNK_SIZE) {
+				if (count == chunks.length)
+					chunks = Arrays.copyOf(chunks, count * 2);
+
+				chunks[count++] = i;
+				size = 0;
+			}
+
+			size += encoded;
+			i += run;
+		}
+
+		chunks = Arrays.copyOf(chunks, count + 1);
+		chunks[count] = bytes.length;
+		return chunks;
+	}
+
+	/**
+	 * Compresses part of a file into a complete stream with its header.
+	 * 
+	 * @param bytes
+	 *            The uncompressed bytes.
+	 * @param offset
+	 *            The offset of the part.
+	 * @param length
+	 *            The length of the part.
+	 * @return The compressed stream.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	private static byte[] compress(byte[] bytes, int offset, int length) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		try (OutputStream os = new CBZip2OutputStream(bout, 1)) {
+			os.write(bytes, offset, length);
+		}
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Finds the end of stream marker of a single block stream. The stream is
+	 * padded to a whole number of bytes, so the marker is found by checking
+	 * each possible amount of padding for the marker and the CRC.
+	 * 
+	 * @param stream
+	 *            The stream.
+	 * @param blockCrc
+	 *            The CRC of its only block, which is also its combined CRC.
+	 * @return The position of the marker, in bits.
+	 * @throws IOException
+	 *             if the marker could not be found.
+	 */
+	private static long findEndOfStream(byte[] stream, int blockCrc) throws IOException {
+		long bits = (long) stream.length * 8;
+		for (int padding = 0; padding < 8; padding++) {
+			long end = bits - padding - TRAILER_BITS;
+			if (end < HEADER_BITS)
+				break;
+
+			if (getBits(stream, end, 48) == END_MAGIC && (int) getBits(stream, end + 48, 32) == blockCrc
+					&& getBits(stream, bits - padding, padding) == 0)
+				return end;
+		}
+		throw new IOException("Could not find the end of a BZIP2 block");
+	}
+
+	/**
+	 * Reads bits from an array.
+	 * 
+	 * @param bytes
+	 *            The array.
+	 * @param position
+	 *            The position of the first bit.
+	 * @param count
+	 *            The number of bits, up to 56.
+	 * @return The bits.
+	 */
+	private static long getBits(byte[] bytes, long position, int count) {
+		long value = 0;
+		for (int i = 0; i < count; i++) {
+			long bit = position + i;
+			value = (value << 1) | ((bytes[(int) (bit >>> 3)] >>> (7 - (int) (bit & 7))) & 1);
+		}
+		return value;
+	}
+
+	/**
+	 * A {@link BitWriter} builds a stream of bits, most significant bit
+	 * first.
+	 */
+	private static final class BitWriter {
+
+		/**
+		 * The bytes written so far.
+		 */
+		private byte[] bytes;
+
+		/**
+		 * The number of bytes written so far.
+		 */
+		private int length;
+
+		/**
+		 * The bits not yet written as a whole byte.
+		 */
+		private long bits;
+
+		/**
+		 * The number of bits not yet written as a whole byte.
+		 */
+		private int bitCount;
+
+		/**
+		 * Creates a new bit writer.
+		 * 
+		 * @param capacity
+		 *            The initial capacity, in bytes.
+		 */
+		BitWriter(int capacity) {
+			this.bytes = new byte[capacity];
+		}
+
+		/**
+		 * Writes bits.
+		 * 
+		 * @param value
+		 *            The bits.
+		 * @param count
+		 *            The number of bits, up to 32.
+		 */
+		void putBits(long value, int count) {
+			bits = (bits << count) | (value & ((1L << count) - 1));
+			bitCount += count;
+			while (bitCount >= 8) {
+				if (length == bytes.length)
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+
+				bitCount -= 8;
+				bytes[length++] = (byte) (bits >>> bitCount);
+			}
+		}
+
+		/**
+		 * Writes a range of bits from an array.
+		 * 
+		 * @param src
+		 *            The array.
+		 * @param start
+		 *            The position of the first bit.
+		 * @param end
+		 *            The position after the last bit.
+		 */
+		void putBits(byte[] src, long start, long end) {
+			long position = start;
+			int shift = (int) (position & 7);
+
+			/* copy whole bytes, shifted if the range is not byte aligned */
+			while (end - position >= 8) {
+				int index = (int) (position >>> 3);
+				int value = (src[index] & 0xFF) << 8;
+				if (shift != 0)
+					value |= src[index + 1] & 0xFF;
+
+				putBits((value >>> (8 - shift)) & 0xFF, 8);
+				position += 8;
+			}
+
+			int remaining = (int) (end - position);
+			putBits(getBits(src, position, remaining), remaining);
+		}
+
+		/**
+		 * Pads the bits to a whole number of bytes and returns them.
+		 * 
+		 * @return The bytes.
+		 */
+		byte[] toByteArray() {
+			if (bitCount > 0)
+				putBits(0, 8 - bitCount);
+
+			return Arrays.copyOf(bytes, length);
+		}
+
+	}
+
+	/**
+	 * Default private constructor to prevent instantiation.
+	 */
+	private BZip2Encoder() {
+
+	}
+
+}
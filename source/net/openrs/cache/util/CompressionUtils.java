@@ -23,14 +23,20 @@ package net.openrs.cache.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import net.openrs.cache.Container;
 
 import org.apache.tools.bzip2.CBZip2InputStream;
-import org.apache.tools.bzip2.CBZip2OutputStream;
 
 /**
  * A class that contains methods to compress and uncompress BZIP2 and GZIP byte
@@ -41,6 +47,60 @@ import org.apache.tools.bzip2.CBZip2OutputStream;
  */
 public final class CompressionUtils {
 
+	/**
+	 * The BZIP2 header that is stripped from compressed files.
+	 */
+	private static final byte[] BZIP2_HEADER = { 'h', '1' };
+
+	/**
+	 * The size of the fixed part of a GZIP header.
+	 */
+	private static final int GZIP_HEADER_SIZE = 10;
+
+	/**
+	 * The size of a GZIP trailer.
+	 */
+	private static final int GZIP_TRAILER_SIZE = 8;
+
+	/**
+	 * The most that DEFLATE can expand data by, which bounds the uncompressed
+	 * size of a GZIP file by its compressed size.
+	 */
+	public static final int GZIP_MAX_EXPANSION = 1032;
+
+	/**
+	 * The GZIP header flag indicating a header checksum is present.
+	 */
+	private static final int GZIP_FLAG_HEADER_CRC = 2;
+
+	/**
+	 * The GZIP header flag indicating an extra field is present.
+	 */
+	private static final int GZIP_FLAG_EXTRA = 4;
+
+	/**
+	 * The GZIP header flag indicating a file name is present.
+	 */
+	private static final int GZIP_FLAG_NAME = 8;
+
+	/**
+	 * The GZIP header flag indicating a comment is present.
+	 */
+	private static final int GZIP_FLAG_COMMENT = 16;
+
+	/**
+	 * The {@link Inflater} of each thread, reused so native zlib state is not
+	 * allocated for every file.
+	 */
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	/**
+	 * The {@link Deflater} of each thread, reused so native zlib state is not
+	 * allocated for every file.
+	 */
+	private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal
+			.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
 	/**
 	 * Uncompresses a BZIP2 file.
 	 * 
@@ -51,13 +111,7 @@ public final class CompressionUtils {
 	 *             if an I/O error occurs.
 	 */
 	public static byte[] bunzip2(byte[] bytes) throws IOException {
-		/* prepare a new byte array with the bzip2 header at the start */
-		byte[] bzip2 = new byte[bytes.length + 2];
-		bzip2[0] = 'h';
-		bzip2[1] = '1';
-		System.arraycopy(bytes, 0, bzip2, 2, bytes.length);
-
-		InputStream is = new CBZip2InputStream(new ByteArrayInputStream(bzip2));
+		InputStream is = new CBZip2InputStream(openBzip2(bytes, 0, bytes.length));
 		try {
 			ByteArrayOutputStream os = new ByteArrayOutputStream();
 			try {
@@ -77,7 +131,46 @@ public final class CompressionUtils {
 	}
 
 	/**
-	 * Compresses a BZIP2 file.
+	 * Uncompresses a BZIP2 file of a known size directly into the specified
+	 * array, using a {@link BZip2Decoder} rather than a stream.
+	 * 
+	 * @param bytes
+	 *            The array holding the compressed bytes without the header.
+	 * @param offset
+	 *            The offset of the compressed bytes.
+	 * @param length
+	 *            The number of compressed bytes.
+	 * @param uncompressed
+	 *            The array to uncompress into, which must be exactly the size
+	 *            of the uncompressed file.
+	 * @throws IOException
+	 *             if an I/O error occurs, or the size of the uncompressed
+	 *             file does not match the size of the array.
+	 */
+	public static void bunzip2(byte[] bytes, int offset, int length, byte[] uncompressed) throws IOException {
+		BZip2Decoder.decode(bytes, offset, length, uncompressed);
+	}
+
+	/**
+	 * Opens a stream of a BZIP2 file, feeding the stripped header before the
+	 * compressed bytes rather than copying them into a new array.
+	 * 
+	 * @param bytes
+	 *            The array holding the compressed bytes without the header.
+	 * @param offset
+	 *            The offset of the compressed bytes.
+	 * @param length
+	 *            The number of compressed bytes.
+	 * @return The stream.
+	 */
+	private static InputStream openBzip2(byte[] bytes, int offset, int length) {
+		return new SequenceInputStream(new ByteArrayInputStream(BZIP2_HEADER),
+				new ByteArrayInputStream(bytes, offset, length));
+	}
+
+	/**
+	 * Compresses a BZIP2 file. Files larger than a single block are
+	 * compressed in parallel by a {@link BZip2Encoder}.
 	 * 
 	 * @param bytes
 	 *            The uncompressed bytes.
@@ -86,64 +179,237 @@ public final class CompressionUtils {
 	 *             if an I/O erorr occurs.
 	 */
 	public static byte[] bzip2(byte[] bytes) throws IOException {
-		InputStream is = new ByteArrayInputStream(bytes);
+		return BZip2Encoder.encode(bytes);
+	}
+
+	/**
+	 * Uncompresses a GZIP file, which may consist of several members laid end
+	 * to end. The uncompressed size may be at most
+	 * {@link Container#MAX_UNCOMPRESSED_LENGTH} bytes.
+	 * 
+	 * @param bytes
+	 *            The compressed bytes.
+	 * @return The uncompressed bytes.
+	 * @throws IOException
+	 *             if an I/O error occurs, or the file is too large.
+	 */
+	public static byte[] gunzip(byte[] bytes) throws IOException {
+		if (bytes.length < GZIP_TRAILER_SIZE)
+			throw new EOFException();
+
+		/*
+		 * the trailer ends with the uncompressed size of the last member, which
+		 * is the size of the whole file unless there are several members
+		 */
+		long limit = Math.min(Container.MAX_UNCOMPRESSED_LENGTH, (long) bytes.length * GZIP_MAX_EXPANSION);
+		int size = getIntLE(bytes, bytes.length - 4);
+		if (size < 0 || size > limit)
+			throw new IOException("Invalid uncompressed size");
+
+		byte[] uncompressed = new byte[size];
+		int inflated = 0;
+		int pos = 0;
+		Inflater inflater = INFLATER.get();
 		try {
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			OutputStream os = new CBZip2OutputStream(bout, 1);
-			try {
-				byte[] buf = new byte[4096];
-				int len = 0;
-				while ((len = is.read(buf, 0, buf.length)) != -1) {
-					os.write(buf, 0, len);
+			do {
+				int start = inflated;
+				inflater.reset();
+				pos = skipGzipHeader(bytes, pos, bytes.length);
+				inflater.setInput(bytes, pos, bytes.length - pos);
+
+				/* inflate the member, growing the array if it does not fit */
+				while (!inflater.finished()) {
+					if (inflated == uncompressed.length) {
+						if (inflated >= limit)
+							throw new IOException("Uncompressed data exceeds " + limit + " bytes.");
+						uncompressed = Arrays.copyOf(uncompressed, (int) Math.min(limit, Math.max(inflated * 2L, 4096)));
+					}
+
+					int len = inflater.inflate(uncompressed, inflated, uncompressed.length - inflated);
+					if (len == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						throw new EOFException("Unexpected end of ZLIB input stream");
+					inflated += len;
 				}
-			} finally {
-				os.close();
-			}
 
-			/* strip the header from the byte array and return it */
-			bytes = bout.toByteArray();
-			byte[] bzip2 = new byte[bytes.length - 2];
-			System.arraycopy(bytes, 2, bzip2, 0, bzip2.length);
-			return bzip2;
-		} finally {
-			is.close();
+				/* verify the trailer of the member */
+				pos = bytes.length - inflater.getRemaining();
+				if (bytes.length - pos < GZIP_TRAILER_SIZE)
+					throw new EOFException("Unexpected end of ZLIB input stream");
+
+				CRC32 crc = new CRC32();
+				crc.update(uncompressed, start, inflated - start);
+				if (getIntLE(bytes, pos) != (int) crc.getValue() || getIntLE(bytes, pos + 4) != inflated - start)
+					throw new ZipException("Corrupt GZIP trailer");
+				pos += GZIP_TRAILER_SIZE;
+			} while (pos < bytes.length);
+		} catch (DataFormatException ex) {
+			throw new ZipException(ex.getMessage());
 		}
+
+		return inflated == uncompressed.length ? uncompressed : Arrays.copyOf(uncompressed, inflated);
 	}
 
 	/**
-	 * Uncompresses a GZIP file.
+	 * Uncompresses a GZIP file of a known size directly into the specified
+	 * array. The header and trailer are parsed here, so the compressed bytes
+	 * are inflated straight from the source array with this thread's
+	 * {@link Inflater}.
 	 * 
 	 * @param bytes
-	 *            The compressed bytes.
-	 * @return The uncompressed bytes.
+	 *            The array holding the compressed bytes.
+	 * @param offset
+	 *            The offset of the compressed bytes.
+	 * @param length
+	 *            The number of compressed bytes.
+	 * @param uncompressed
+	 *            The array to uncompress into, which must be exactly the size
+	 *            of the uncompressed file.
 	 * @throws IOException
-	 *             if an I/O error occurs.
+	 *             if an I/O error occurs, or the size of the uncompressed
+	 *             file does not match the size of the array.
 	 */
-	public static byte[] gunzip(byte[] bytes) throws IOException {
-		/* create the streams */
-		InputStream is = new GZIPInputStream(new ByteArrayInputStream(bytes));
+	public static void gunzip(byte[] bytes, int offset, int length, byte[] uncompressed) throws IOException {
+		int end = offset + length;
+		int pos = skipGzipHeader(bytes, offset, end);
+
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(bytes, pos, end - pos);
 		try {
-			ByteArrayOutputStream os = new ByteArrayOutputStream();
-			try {
-				/* copy data between the streams */
-				byte[] buf = new byte[4096];
-				int len = 0;
-				while ((len = is.read(buf, 0, buf.length)) != -1) {
-					os.write(buf, 0, len);
+			/* inflate straight into the array */
+			int inflated = 0;
+			while (inflated < uncompressed.length) {
+				int len = inflater.inflate(uncompressed, inflated, uncompressed.length - inflated);
+				if (len == 0) {
+					if (inflater.finished())
+						throw new IOException("Length mismatch. [ " + inflated + ", " + uncompressed.length + " ]");
+					else if (inflater.needsInput() || inflater.needsDictionary())
+						throw new EOFException("Unexpected end of ZLIB input stream");
 				}
-			} finally {
-				os.close();
+				inflated += len;
 			}
 
-			/* return the uncompressed bytes */
-			return os.toByteArray();
-		} finally {
-			is.close();
+			/* make sure there is no more data */
+			if (!inflater.finished() && (inflater.inflate(new byte[1]) != 0 || !inflater.finished()))
+				throw new IOException("Length mismatch. Uncompressed data exceeds " + uncompressed.length + " bytes.");
+		} catch (DataFormatException ex) {
+			throw new ZipException(ex.getMessage());
+		}
+
+		/* verify the trailer */
+		pos = end - inflater.getRemaining();
+		if (end - pos < GZIP_TRAILER_SIZE)
+			throw new EOFException("Unexpected end of ZLIB input stream");
+
+		CRC32 crc = new CRC32();
+		crc.update(uncompressed, 0, uncompressed.length);
+		if (getIntLE(bytes, pos) != (int) crc.getValue())
+			throw new ZipException("Corrupt GZIP trailer");
+		else if (getIntLE(bytes, pos + 4) != uncompressed.length)
+			throw new ZipException("Corrupt GZIP trailer");
+	}
+
+	/**
+	 * Skips the header of a GZIP file.
+	 * 
+	 * @param bytes
+	 *            The array holding the compressed bytes.
+	 * @param pos
+	 *            The offset of the header.
+	 * @param end
+	 *            The end of the compressed bytes.
+	 * @return The offset of the deflated data.
+	 * @throws IOException
+	 *             if the header is invalid.
+	 */
+	private static int skipGzipHeader(byte[] bytes, int pos, int end) throws IOException {
+		if (end - pos < GZIP_HEADER_SIZE)
+			throw new EOFException();
+
+		if ((bytes[pos] & 0xFF) != 0x1F || (bytes[pos + 1] & 0xFF) != 0x8B)
+			throw new ZipException("Not in GZIP format");
+		else if (bytes[pos + 2] != 8)
+			throw new ZipException("Unsupported compression method");
+
+		int flags = bytes[pos + 3] & 0xFF;
+		pos += GZIP_HEADER_SIZE;
+
+		/* skip the optional extra field, file name and comment */
+		if ((flags & GZIP_FLAG_EXTRA) != 0) {
+			if (end - pos < 2)
+				throw new EOFException();
+
+			pos += 2 + ((bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8));
+		}
+		if ((flags & GZIP_FLAG_NAME) != 0)
+			pos = skipString(bytes, pos, end);
+		if ((flags & GZIP_FLAG_COMMENT) != 0)
+			pos = skipString(bytes, pos, end);
+
+		/* skip the optional header checksum */
+		if ((flags & GZIP_FLAG_HEADER_CRC) != 0)
+			pos += 2;
+
+		if (pos > end)
+			throw new EOFException();
+
+		return pos;
+	}
+
+	/**
+	 * Skips a null-terminated string in the header of a GZIP file.
+	 * 
+	 * @param bytes
+	 *            The array holding the compressed bytes.
+	 * @param pos
+	 *            The offset of the string.
+	 * @param end
+	 *            The end of the compressed bytes.
+	 * @return The offset after the string.
+	 * @throws IOException
+	 *             if the string is not terminated.
+	 */
+	private static int skipString(byte[] bytes, int pos, int end) throws IOException {
+		while (pos < end) {
+			if (bytes[pos++] == 0)
+				return pos;
 		}
+		throw new EOFException();
+	}
+
+	/**
+	 * Reads a little-endian integer from an array.
+	 * 
+	 * @param bytes
+	 *            The array.
+	 * @param pos
+	 *            The offset of the integer.
+	 * @return The integer.
+	 */
+	private static int getIntLE(byte[] bytes, int pos) {
+		return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8) | ((bytes[pos + 2] & 0xFF) << 16)
+				| ((bytes[pos + 3] & 0xFF) << 24);
 	}
 
 	/**
-	 * Compresses a GZIP file.
+	 * Writes a little-endian integer to an array.
+	 * 
+	 * @param bytes
+	 *            The array.
+	 * @param pos
+	 *            The offset of the integer.
+	 * @param value
+	 *            The integer.
+	 */
+	private static void putIntLE(byte[] bytes, int pos, int value) {
+		bytes[pos] = (byte) value;
+		bytes[pos + 1] = (byte) (value >> 8);
+		bytes[pos + 2] = (byte) (value >> 16);
+		bytes[pos + 3] = (byte) (value >> 24);
+	}
+
+	/**
+	 * Compresses a GZIP file with this thread's {@link Deflater}.
 	 * 
 	 * @param bytes
 	 *            The uncompressed bytes.
@@ -152,27 +418,33 @@ public final class CompressionUtils {
 	 *             if an I/O error occurs.
 	 */
 	public static byte[] gzip(byte[] bytes) throws IOException {
-		/* create the streams */
-		InputStream is = new ByteArrayInputStream(bytes);
-		try {
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			OutputStream os = new GZIPOutputStream(bout);
-			try {
-				/* copy data between the streams */
-				byte[] buf = new byte[4096];
-				int len = 0;
-				while ((len = is.read(buf, 0, buf.length)) != -1) {
-					os.write(buf, 0, len);
-				}
-			} finally {
-				os.close();
-			}
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
 
-			/* return the compressed bytes */
-			return bout.toByteArray();
-		} finally {
-			is.close();
+		/* the header is the same as the one written by GZIPOutputStream */
+		byte[] compressed = new byte[GZIP_HEADER_SIZE + bytes.length / 2 + 64];
+		compressed[0] = (byte) 0x1F;
+		compressed[1] = (byte) 0x8B;
+		compressed[2] = 8;
+
+		int pos = GZIP_HEADER_SIZE;
+		while (!deflater.finished()) {
+			if (pos == compressed.length)
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+
+			pos += deflater.deflate(compressed, pos, compressed.length - pos);
 		}
+
+		/* write the trailer */
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+
+		compressed = Arrays.copyOf(compressed, pos + GZIP_TRAILER_SIZE);
+		putIntLE(compressed, pos, (int) crc.getValue());
+		putIntLE(compressed, pos + 4, bytes.length);
+		return compressed;
 	}
 
 	/**
@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) OpenRS
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.openrs.cache.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * A {@link LruCache} holds values up to a total weight, such as a number of
+ * bytes, evicting the least recently used values once the weight is exceeded.
+ * <p />
+ * A cache may be shared between threads. It also counts its hits, misses and
+ * evictions.
+ * 
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+public final class LruCache<K, V> {
+
+	/**
+	 * The values, ordered from least to most recently used.
+	 */
+	private final LinkedHashMap<K, V> values = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The function that weighs each value.
+	 */
+	private final ToIntFunction<V> weigher;
+
+	/**
+	 * The maximum total weight of the values.
+	 */
+	private final long capacity;
+
+	/**
+	 * The total weight of the values.
+	 */
+	private long weight;
+
+	/**
+	 * The number of lookups that found a value.
+	 */
+	private long hits;
+
+	/**
+	 * The number of lookups that did not find a value.
+	 */
+	private long misses;
+
+	/**
+	 * The number of values evicted to stay within the capacity.
+	 */
+	private long evictions;
+
+	/**
+	 * Creates a new {@link LruCache}.
+	 * 
+	 * @param capacity
+	 *            The maximum total weight of the values.
+	 * @param weigher
+	 *            The function that weighs each value.
+	 */
+	public LruCache(long capacity, ToIntFunction<V> weigher) {
+		this.capacity = capacity;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Gets a value, marking it as the most recently used.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @return The value, or {@code null} if there is no value for the key.
+	 */
+	public synchronized V get(K key) {
+		return get(key, value -> true);
+	}
+
+	/**
+	 * Gets a value if it is still valid, marking it as the most recently used.
+	 * A value that is no longer valid is removed, and counts as a miss.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param valid
+	 *            The predicate that checks whether the value is valid.
+	 * @return The value, or {@code null} if there is no valid value for the
+	 *         key.
+	 */
+	public synchronized V get(K key, Predicate<V> valid) {
+		V value = values.get(key);
+		if (value != null && !valid.test(value)) {
+			remove(key);
+			value = null;
+		}
+
+		if (value == null)
+			misses++;
+		else
+			hits++;
+
+		return value;
+	}
+
+	/**
+	 * Puts a value into the cache, evicting the least recently used values if
+	 * the capacity is exceeded. Values heavier than the capacity are not
+	 * cached.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @param value
+	 *            The value.
+	 */
+	public synchronized void put(K key, V value) {
+		remove(key);
+
+		int weight = weigher.applyAsInt(value);
+		if (weight > capacity)
+			return;
+
+		values.put(key, value);
+		this.weight += weight;
+
+		Iterator<V> it = values.values().iterator();
+		while (this.weight > capacity) {
+			this.weight -= weigher.applyAsInt(it.next());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Removes a value.
+	 * 
+	 * @param key
+	 *            The key.
+	 * @return The removed value, or {@code null} if there was no value for
+	 *         the key.
+	 */
+	public synchronized V remove(K key) {
+		V value = values.remove(key);
+		if (value != null)
+			weight -= weigher.applyAsInt(value);
+
+		return value;
+	}
+
+	/**
+	 * Removes every value whose key matches the specified predicate.
+	 * 
+	 * @param predicate
+	 *            The predicate.
+	 */
+	public synchronized void removeIf(Predicate<K> predicate) {
+		for (Iterator<Map.Entry<K, V>> it = values.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<K, V> entry = it.next();
+			if (predicate.test(entry.getKey())) {
+				weight -= weigher.applyAsInt(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes every value.
+	 */
+	public synchronized void clear() {
+		values.clear();
+		weight = 0;
+	}
+
+	/**
+	 * Gets the number of values in the cache.
+	 * 
+	 * @return The number of values.
+	 */
+	public synchronized int size() {
+		return values.size();
+	}
+
+	/**
+	 * Gets the maximum total weight of the values.
+	 * 
+	 * @return The capacity.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the total weight of the values.
+	 * 
+	 * @return The weight.
+	 */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Gets the number of lookups that found a value.
+	 * 
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that did not find a value.
+	 * 
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of values evicted to stay within the capacity.
+	 * 
+	 * @return The number of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+}
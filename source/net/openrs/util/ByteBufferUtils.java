@@ -24,7 +24,6 @@ package net.openrs.util;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.zip.CRC32;
-import java.util.zip.Checksum;
 
 import net.openrs.util.crypto.Whirlpool;
 
@@ -52,10 +51,12 @@ public final class ByteBufferUtils {
 	 * @return The CRC32 checksum.
 	 */
 	public static int getCrcChecksum(ByteBuffer buffer) {
-		Checksum crc = new CRC32();
-		for (int i = 0; i < buffer.limit(); i++) {
-			crc.update(buffer.get(i));
-		}
+		/* checksum the whole buffer at once through a view, so its position is untouched */
+		ByteBuffer view = buffer.duplicate();
+		view.position(0);
+
+		CRC32 crc = new CRC32();
+		crc.update(view);
 		return (int) crc.getValue();
 	}
 
@@ -192,6 +193,20 @@ public final class ByteBufferUtils {
 		return ((buf.get() & 0xFF) << 16) | ((buf.get() & 0xFF) << 8) | (buf.get() & 0xFF);
 	}
 
+	/**
+	 * Reads a 'tri-byte' from the specified absolute index of the buffer,
+	 * without changing its position.
+	 * 
+	 * @param buf
+	 *            The buffer.
+	 * @param index
+	 *            The index of the first byte.
+	 * @return The value.
+	 */
+	public static int getMedium(ByteBuffer buf, int index) {
+		return ((buf.get(index) & 0xFF) << 16) | ((buf.get(index + 1) & 0xFF) << 8) | (buf.get(index + 2) & 0xFF);
+	}
+
 	/**
 	 * Calculates the whirlpool digest of the specified buffer.
 	 * 
@@ -200,6 +215,12 @@ public final class ByteBufferUtils {
 	 * @return The 64-byte whirlpool digest.
 	 */
 	public static byte[] getWhirlpoolDigest(ByteBuffer buf) {
+		/* digest the backing array in place if there is one */
+		if (buf.hasArray() && buf.position() == 0) {
+			buf.position(buf.limit());
+			return Whirlpool.whirlpool(buf.array(), buf.arrayOffset(), buf.limit());
+		}
+
 		byte[] bytes = new byte[buf.limit()];
 		buf.get(bytes);
 		return Whirlpool.whirlpool(bytes, 0, bytes.length);
@@ -57,6 +57,32 @@ public final class FileChannelUtils {
 		}
 	}
 
+	/**
+	 * Reads from the channel into the buffer until either the buffer is full
+	 * or the end of the channel is reached.
+	 * 
+	 * @param channel
+	 *            The channel.
+	 * @param buffer
+	 *            The buffer.
+	 * @param ptr
+	 *            The initial position in the channel.
+	 * @return The number of bytes read.
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public static int readAvailable(FileChannel channel, ByteBuffer buffer, long ptr) throws IOException {
+		int total = 0;
+		while (buffer.remaining() > 0) {
+			int read = channel.read(buffer, ptr + total);
+			if (read == -1)
+				break;
+
+			total += read;
+		}
+		return total;
+	}
+
 	/**
 	 * Default private constructor to prevent instantiation.
 	 */
@@ -56,17 +56,43 @@ public final class Xtea {
 			throw new IllegalArgumentException();
 
 		int numQuads = (end - start) / 8;
-		for (int i = 0; i < numQuads; i++) {
-			int sum = GOLDEN_RATIO * ROUNDS;
-			int v0 = buffer.getInt(start + i * 8);
-			int v1 = buffer.getInt(start + i * 8 + 4);
-			for (int j = 0; j < ROUNDS; j++) {
-				v1 -= (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ (sum + key[(sum >>> 11) & 3]);
-				sum -= GOLDEN_RATIO;
-				v0 -= (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ (sum + key[sum & 3]);
+		if (numQuads <= 0)
+			return;
+
+		/* the round keys only depend on the key, so they are only calculated once */
+		int[] schedule = new int[ROUNDS * 2];
+		int sum = GOLDEN_RATIO * ROUNDS;
+		for (int j = 0; j < ROUNDS; j++) {
+			schedule[j * 2] = sum + key[(sum >>> 11) & 3];
+			sum -= GOLDEN_RATIO;
+			schedule[j * 2 + 1] = sum + key[sum & 3];
+		}
+
+		if (buffer.hasArray()) {
+			/* work on the backing array directly rather than through the buffer */
+			byte[] bytes = buffer.array();
+			int offset = buffer.arrayOffset() + start;
+			for (int i = 0; i < numQuads; i++, offset += 8) {
+				int v0 = getInt(bytes, offset);
+				int v1 = getInt(bytes, offset + 4);
+				for (int j = 0; j < ROUNDS * 2; j += 2) {
+					v1 -= (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ schedule[j];
+					v0 -= (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ schedule[j + 1];
+				}
+				putInt(bytes, offset, v0);
+				putInt(bytes, offset + 4, v1);
+			}
+		} else {
+			for (int i = 0; i < numQuads; i++) {
+				int v0 = buffer.getInt(start + i * 8);
+				int v1 = buffer.getInt(start + i * 8 + 4);
+				for (int j = 0; j < ROUNDS * 2; j += 2) {
+					v1 -= (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ schedule[j];
+					v0 -= (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ schedule[j + 1];
+				}
+				buffer.putInt(start + i * 8, v0);
+				buffer.putInt(start + i * 8 + 4, v1);
 			}
-			buffer.putInt(start + i * 8, v0);
-			buffer.putInt(start + i * 8 + 4, v1);
 		}
 	}
 
@@ -85,20 +111,77 @@ public final class Xtea {
 			throw new IllegalArgumentException();
 
 		int numQuads = (end - start) / 8;
-		for (int i = 0; i < numQuads; i++) {
-			int sum = 0;
-			int v0 = buffer.getInt(start + i * 8);
-			int v1 = buffer.getInt(start + i * 8 + 4);
-			for (int j = 0; j < ROUNDS; j++) {
-				v0 += (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ (sum + key[sum & 3]);
-				sum += GOLDEN_RATIO;
-				v1 += (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ (sum + key[(sum >>> 11) & 3]);
+		if (numQuads <= 0)
+			return;
+
+		/* the round keys only depend on the key, so they are only calculated once */
+		int[] schedule = new int[ROUNDS * 2];
+		int sum = 0;
+		for (int j = 0; j < ROUNDS; j++) {
+			schedule[j * 2] = sum + key[sum & 3];
+			sum += GOLDEN_RATIO;
+			schedule[j * 2 + 1] = sum + key[(sum >>> 11) & 3];
+		}
+
+		if (buffer.hasArray()) {
+			/* work on the backing array directly rather than through the buffer */
+			byte[] bytes = buffer.array();
+			int offset = buffer.arrayOffset() + start;
+			for (int i = 0; i < numQuads; i++, offset += 8) {
+				int v0 = getInt(bytes, offset);
+				int v1 = getInt(bytes, offset + 4);
+				for (int j = 0; j < ROUNDS * 2; j += 2) {
+					v0 += (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ schedule[j];
+					v1 += (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ schedule[j + 1];
+				}
+				putInt(bytes, offset, v0);
+				putInt(bytes, offset + 4, v1);
+			}
+		} else {
+			for (int i = 0; i < numQuads; i++) {
+				int v0 = buffer.getInt(start + i * 8);
+				int v1 = buffer.getInt(start + i * 8 + 4);
+				for (int j = 0; j < ROUNDS * 2; j += 2) {
+					v0 += (((v1 << 4) ^ (v1 >>> 5)) + v1) ^ schedule[j];
+					v1 += (((v0 << 4) ^ (v0 >>> 5)) + v0) ^ schedule[j + 1];
+				}
+				buffer.putInt(start + i * 8, v0);
+				buffer.putInt(start + i * 8 + 4, v1);
 			}
-			buffer.putInt(start + i * 8, v0);
-			buffer.putInt(start + i * 8 + 4, v1);
 		}
 	}
 
+	/**
+	 * Reads a big-endian integer from an array.
+	 * 
+	 * @param bytes
+	 *            The array.
+	 * @param offset
+	 *            The offset of the integer.
+	 * @return The integer.
+	 */
+	private static int getInt(byte[] bytes, int offset) {
+		return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8)
+				| (bytes[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Writes a big-endian integer to an array.
+	 * 
+	 * @param bytes
+	 *            The array.
+	 * @param offset
+	 *            The offset of the integer.
+	 * @param value
+	 *            The integer.
+	 */
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >> 24);
+		bytes[offset + 1] = (byte) (value >> 16);
+		bytes[offset + 2] = (byte) (value >> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
 	/**
 	 * Default private constructor to prevent instantiation.
 	 */